@@ -0,0 +1,64 @@
+package a.constantsArithmeticIf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import a.constantsArithmeticIf.IntArithmetic.Operation;
+
+// Every operation is one evaluate call, whose value JMH consumes. The
+// workloads are the same in every package; the forks get a large stack
+// because only f and g evaluate in constant stack.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class InterpreterBenchmark {
+
+  static final int DEPTH = 12;
+
+  // Stage a has no variables, so as a Program this tree would fold to a
+  // constant; it is evaluated as built instead, without folding
+  Expression arithmetic;
+
+  @Setup
+  public void setup() {
+    arithmetic = arithmetic(DEPTH);
+  }
+
+  @Benchmark
+  public Value arithmetic() {
+    return Interpreter.evaluate(arithmetic);
+  }
+
+  // Workloads
+
+  // A full binary tree of arithmetic under never-taken If guards, with 3
+  // where the other stages read x
+  static Expression arithmetic(int depth) {
+    if (depth == 0)
+      return new IntConstant(3);
+
+    return new If(
+        new IntComparison(
+            new IntConstant(3),
+            new IntConstant(-1)),
+        new IntConstant(0),
+        new IntArithmetic(
+            depth % 2 == 0 ? Operation.PLUS : Operation.MULT,
+            arithmetic(depth - 1),
+            arithmetic(depth - 1)));
+  }
+
+}
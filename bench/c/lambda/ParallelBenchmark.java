@@ -0,0 +1,78 @@
+package c.lambda;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import c.lambda.IntArithmetic.Operation;
+
+// fib(N) through the Z combinator, whose two recursive calls are
+// independent, evaluated sequentially and on the common ForkJoinPool. The
+// speedup is bounded by the number of cores.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class ParallelBenchmark {
+
+  static final int N = 22;
+
+  @Param({ "false", "true" })
+  boolean parallel;
+
+  Program fib;
+
+  @Setup
+  public void setup() {
+    fib = new Program(new LambdaApp(
+        new LambdaApp(
+            InterpreterBenchmark.z(),
+            new LambdaDef(
+                new Variable("fib"),
+                new LambdaDef(
+                    new Variable("n"),
+                    new If(
+                        new IntComparison(
+                            new Variable("n"),
+                            new IntConstant(0)),
+                        new IntConstant(0),
+                        new If(
+                            new IntComparison(
+                                new Variable("n"),
+                                new IntConstant(1)),
+                            new IntConstant(1),
+                            new IntArithmetic(
+                                Operation.PLUS,
+                                new LambdaApp(
+                                    new Variable("fib"),
+                                    new IntArithmetic(
+                                        Operation.MINUS,
+                                        new Variable("n"),
+                                        new IntConstant(1))),
+                                new LambdaApp(
+                                    new Variable("fib"),
+                                    new IntArithmetic(
+                                        Operation.MINUS,
+                                        new Variable("n"),
+                                        new IntConstant(2))))))))),
+        new IntConstant(N)));
+  }
+
+  @Benchmark
+  public Value fib() {
+    return Interpreter.evaluate(fib, Environment.EMPTY, parallel);
+  }
+
+}
@@ -0,0 +1,147 @@
+package e.CPS;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import e.CPS.IntArithmetic.Operation;
+
+// Every operation is one evaluate call (resolve and evaluate), whose value
+// JMH consumes. The workloads are the same in every package; the forks get
+// a large stack because only f and g evaluate in constant stack.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class InterpreterBenchmark {
+
+  static final int DEPTH = 12;
+  static final int N = 1000;
+
+  Program arithmetic, recursion, closures;
+  Environment env;
+
+  @Setup
+  public void setup() {
+    arithmetic = new Program(arithmetic(DEPTH));
+    recursion = new Program(sum(N));
+    closures = new Program(twice());
+    env = Environment.EMPTY.bind(new Variable("x"), new IntValue(3));
+  }
+
+  @Benchmark
+  public Value arithmetic() {
+    return Interpreter.evaluate(arithmetic, env);
+  }
+
+  @Benchmark
+  public Value recursion() {
+    return Interpreter.evaluate(recursion, env);
+  }
+
+  @Benchmark
+  public Value closures() {
+    return Interpreter.evaluate(closures, env);
+  }
+
+  // Workloads
+
+  // A full binary tree of arithmetic under never-taken If guards
+  static Expression arithmetic(int depth) {
+    if (depth == 0)
+      return new Variable("x");
+
+    return new If(
+        new IntComparison(
+            new Variable("x"),
+            new IntConstant(-1)),
+        new IntConstant(0),
+        new IntArithmetic(
+            depth % 2 == 0 ? Operation.PLUS : Operation.MULT,
+            arithmetic(depth - 1),
+            arithmetic(depth - 1)));
+  }
+
+  // Z = \f. (\x. f (\v. x x v)) (\x. f (\v. x x v))
+  static Expression z() {
+    Expression half =
+        new LambdaDef(
+            new Variable("x"),
+            new LambdaApp(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("v"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("x"),
+                            new Variable("x")),
+                        new Variable("v")))));
+    return new LambdaDef(new Variable("f"), new LambdaApp(half, half));
+  }
+
+  // sum(n) = if n == 0 then 0 else n + sum(n - 1)
+  static Expression sum(int n) {
+    return new LambdaApp(
+        new LambdaApp(
+            z(),
+            new LambdaDef(
+                new Variable("sum"),
+                new LambdaDef(
+                    new Variable("n"),
+                    new If(
+                        new IntComparison(
+                            new Variable("n"),
+                            new IntConstant(0)),
+                        new IntConstant(0),
+                        new IntArithmetic(
+                            Operation.PLUS,
+                            new Variable("n"),
+                            new LambdaApp(
+                                new Variable("sum"),
+                                new IntArithmetic(
+                                    Operation.MINUS,
+                                    new Variable("n"),
+                                    new IntConstant(1)))))))),
+        new IntConstant(n));
+  }
+
+  // (((twice twice) twice) twice) inc 0, i.e. 65536 calls of inc
+  static Expression twice() {
+    Expression twice =
+        new LambdaDef(
+            new Variable("f"),
+            new LambdaDef(
+                new Variable("a"),
+                new LambdaApp(
+                    new Variable("f"),
+                    new LambdaApp(
+                        new Variable("f"),
+                        new Variable("a")))));
+    return new LambdaApp(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaApp(
+                    new LambdaApp(twice, twice),
+                    twice),
+                twice),
+            new LambdaDef(
+                new Variable("i"),
+                new IntArithmetic(
+                    Operation.PLUS,
+                    new Variable("i"),
+                    new IntConstant(1)))),
+        new IntConstant(0));
+  }
+
+}
@@ -0,0 +1,54 @@
+package f.defuncCPS;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The trampoline alone, with and without a recycling ContinuationPool: the
+// programs are resolved once in setup, so gc.alloc.rate.norm counts only
+// what execute allocates. arithmetic is InterpreterBenchmark's tree over
+// x = 1, where pooled runs allocate only the pool, its first continuations
+// and the few IntValues beyond the cache; recursion is its sum through the
+// Z combinator, which also allocates closures and bindings.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class PoolingBenchmark {
+
+  @Param({ "false", "true" })
+  boolean pooled;
+
+  Expression arithmetic, recursion;
+  Environment env;
+
+  @Setup
+  public void setup() {
+    env = Environment.EMPTY.bind(new Variable("x"), new IntValue(1));
+    arithmetic = Interpreter.resolve(Interpreter.fold(InterpreterBenchmark.arithmetic(InterpreterBenchmark.DEPTH)), env);
+    recursion = Interpreter.resolve(Interpreter.fold(InterpreterBenchmark.sum(InterpreterBenchmark.N)), env);
+  }
+
+  @Benchmark
+  public Value arithmetic() {
+    return Interpreter.execute(arithmetic, env, pooled);
+  }
+
+  @Benchmark
+  public Value recursion() {
+    return Interpreter.execute(recursion, env, pooled);
+  }
+
+}
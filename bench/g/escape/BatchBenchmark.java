@@ -0,0 +1,62 @@
+package g.escape;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Every operation runs a batch of small programs (sums of up to 100 numbers
+// through the Z combinator) on a pool of the given number of threads.
+// Throughput should grow with threads up to the number of cores.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1)
+public class BatchBenchmark {
+
+  static final int PROGRAMS = 1000;
+
+  @Param({ "1", "2", "4" })
+  int threads;
+
+  ArrayList<Program> programs;
+  ExecutorService executor;
+  Batch batch;
+
+  @Setup
+  public void setup() {
+    programs = new ArrayList<>();
+    for (int i = 0; i < PROGRAMS; i++)
+      programs.add(new Program(InterpreterBenchmark.sum(i % 100)));
+
+    executor = Executors.newFixedThreadPool(threads);
+    batch = new Batch(executor, Environment.EMPTY, true);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public ArrayList<Value> batch() throws InterruptedException, ExecutionException {
+    return batch.run(programs);
+  }
+
+}
@@ -0,0 +1,64 @@
+package g.escape;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A wide scope: width nested lambdas, each binding one more name, around a
+// body that adds up the outermost name width times. Every operation is one
+// evaluate call, in a list or a hashed initial environment.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class EnvironmentBenchmark {
+
+  @Param({ "100", "1000" })
+  int width;
+
+  @Param({ "list", "hashed" })
+  String environment;
+
+  Program program;
+  Environment env;
+
+  @Setup
+  public void setup() throws IOException {
+    // ((lambda (v0) ((lambda (v1) ... (+ v0 (+ v0 ... 0)) ...) x)) x), applied
+    // to the free x so that folding cannot substitute the arguments away
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < width; i++)
+      sb.append("((lambda (v").append(i).append(") ");
+    for (int i = 0; i < width; i++)
+      sb.append("(+ v0 ");
+    sb.append('0');
+    for (int i = 0; i < width; i++)
+      sb.append(')');
+    for (int i = 0; i < width; i++)
+      sb.append(") x)");
+
+    program = Parser.parse(new StringReader(sb.toString()));
+    env = (environment.equals("hashed") ? Environment.HASHED : Environment.EMPTY)
+        .bind(new Variable("x"), new IntValue(1));
+  }
+
+  @Benchmark
+  public Value wideScope() {
+    return Interpreter.evaluate(program, env);
+  }
+
+}
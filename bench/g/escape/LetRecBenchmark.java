@@ -0,0 +1,95 @@
+package g.escape;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import g.escape.IntArithmetic.Operation;
+
+// Factorial recursing through the Z combinator against the same function
+// bound by LetRec, with environment and flat closures. Through Z, every
+// call applies x x, which builds a new closure for fact and one for
+// \v. x x v; through LetRec it only binds n. Products overflow and wrap,
+// which does not change the calls made.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class LetRecBenchmark {
+
+  static final int N = 1000;
+
+  Program z, letRec;
+  Environment env;
+
+  @Setup
+  public void setup() {
+    z = new Program(
+        new LambdaApp(
+            new LambdaApp(
+                InterpreterBenchmark.z(),
+                new LambdaDef(
+                    new Variable("fact"),
+                    factorial())),
+            new IntConstant(N)));
+    letRec = new Program(
+        new LetRec(
+            new Variable("fact"),
+            factorial(),
+            new LambdaApp(
+                new Variable("fact"),
+                new IntConstant(N))));
+    env = Environment.EMPTY;
+  }
+
+  @Benchmark
+  public Value z() {
+    return Interpreter.evaluate(z, env, false);
+  }
+
+  @Benchmark
+  public Value letRec() {
+    return Interpreter.evaluate(letRec, env, false);
+  }
+
+  @Benchmark
+  public Value zFlat() {
+    return Interpreter.evaluate(z, env, true);
+  }
+
+  @Benchmark
+  public Value letRecFlat() {
+    return Interpreter.evaluate(letRec, env, true);
+  }
+
+  // \n. if n == 0 then 1 else n * fact (n - 1), with fact free
+  static Expression factorial() {
+    return new LambdaDef(
+        new Variable("n"),
+        new If(
+            new IntComparison(
+                new Variable("n"),
+                new IntConstant(0)),
+            new IntConstant(1),
+            new IntArithmetic(
+                Operation.MULT,
+                new Variable("n"),
+                new LambdaApp(
+                    new Variable("fact"),
+                    new IntArithmetic(
+                        Operation.MINUS,
+                        new Variable("n"),
+                        new IntConstant(1))))));
+  }
+}
@@ -0,0 +1,90 @@
+package g.escape;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Every operation parses the whole generated source; divide the size by the
+// time per operation for the throughput in bytes per second. frontEnd adds
+// folding and closure conversion, which is what a ProgramCache hit (cached)
+// replaces.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class ParserBenchmark {
+
+  // Approximate source size in megabytes
+  @Param({ "4" })
+  int megabytes;
+
+  String source;
+  ByteBuffer cached;
+
+  @Setup
+  public void setup() {
+    StringBuilder sb = new StringBuilder();
+
+    // Top-level definitions with a few hundred distinct names, nested a few
+    // levels deep, with comments and both kinds of whitespace. Each is applied
+    // to a call of the free g, so folding cannot evaluate it away.
+    for (int i = 0; sb.length() < megabytes << 20; i++) {
+      String x = "x" + (i % 256), k = "k" + (i % 64);
+      sb.append("; definition ").append(i).append('\n');
+      sb.append("((lambda (").append(x).append(")\n");
+      sb.append("   (escape (").append(k).append(")\n");
+      sb.append("     (seq ").append(i).append(" true\n");
+      sb.append("       (if (= ").append(x).append(" -").append(i).append(")\n");
+      sb.append("           (").append(k).append(" (* ").append(x).append(" 2))\n");
+      sb.append("           (+ (/ ").append(x).append(" 3) (- ").append(x).append(" 1))))))\n");
+      sb.append("\t(g ").append(i).append("))\n");
+    }
+    source = sb.toString();
+
+    try {
+      Path file = Files.createTempFile("parser-benchmark", ".bin");
+      file.toFile().deleteOnExit();
+      Files.write(file, ProgramCache.write(Interpreter.convert(parse().e, Environment.EMPTY, null)));
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        cached = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+    } catch (IOException e) {
+      throw new Error(e);
+    }
+  }
+
+  @Benchmark
+  public Program parse() throws IOException {
+    return Parser.parse(new StringReader(source));
+  }
+
+  @Benchmark
+  public Expression frontEnd() throws IOException {
+    return Interpreter.convert(parse().e, Environment.EMPTY, null);
+  }
+
+  @Benchmark
+  public Expression cached() {
+    return ProgramCache.read(cached.duplicate());
+  }
+
+}
@@ -0,0 +1,67 @@
+package g.escape;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Deeply nested lambdas whose names differ only in their last characters,
+// around a body that reads every one of them. Resolving the body compares
+// each reference against the names bound around it, up to the outermost x.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class SymbolBenchmark {
+
+  static final int DEPTH = 500;
+
+  @Param({ "v", "a_rather_long_and_descriptive_variable_name_" })
+  String prefix;
+
+  Program program;
+  Environment env;
+
+  @Setup
+  public void setup() throws IOException {
+    // ((lambda (v0) ... (+ v0 (+ x (+ v1 (+ x ... 0)))) ...) y)
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < DEPTH; i++)
+      sb.append("((lambda (").append(name(i)).append(") ");
+    for (int i = 0; i < DEPTH; i++)
+      sb.append("(+ ").append(name(i)).append(" (+ x ");
+    sb.append('0');
+    for (int i = 0; i < 2 * DEPTH; i++)
+      sb.append(')');
+    for (int i = 0; i < DEPTH; i++)
+      sb.append(") y)");
+
+    program = Parser.parse(new StringReader(sb.toString()));
+    env = Environment.EMPTY
+        .bind(new Variable("x"), new IntValue(1))
+        .bind(new Variable("y"), new IntValue(2));
+  }
+
+  String name(int i) {
+    return prefix + String.format("%04d", i);
+  }
+
+  @Benchmark
+  public Value nestedLambdas() {
+    return Interpreter.evaluate(program, env, false);
+  }
+
+}
@@ -1,57 +1,125 @@
 package a.constantsArithmeticIf;
 
+import util.Sink;
 import a.constantsArithmeticIf.IntArithmetic.Operation;
 
 public class Interpreter {
   
   static void interpret (Program p) {
-    System.out.println(evaluate(p.e));
+    interpret(p, Sink.SYSTEM_OUT);
   }
   
-  static Value evaluate (Expression e) {
-    if (e instanceof IntConstant) {
-      IntConstant intE = (IntConstant) e;
-
-      return new IntValue(intE.javaInt);
-    } else if (e instanceof BoolConstant) {
-      BoolConstant boolE = (BoolConstant) e;
-
-      return new BoolValue(boolE.javaBool);
+  static void interpret (Program p, Sink out) {
+    out.println(evaluate(p));
+  }
+  
+  static Value evaluate (Program p) {
+    return evaluate(p.e);
+  }
+  
+  // Constant folding: arithmetic and comparisons over constants and Ifs
+  // with constant guards are reduced once, before the program runs.
+  // Anything that could fail at run time is kept.
+  static Expression fold (Expression e) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
     } else if (e instanceof IntArithmetic) {
       IntArithmetic arith = (IntArithmetic) e;
+      Expression op1 = fold(arith.operand1);
+      Expression op2 = fold(arith.operand2);
 
-      IntValue op1 = (IntValue) evaluate(arith.operand1);
-      IntValue op2 = (IntValue) evaluate(arith.operand2);
-      
-      switch (arith.op) {
-        case PLUS:
-          return new IntValue(op1.javaInt + op2.javaInt);
-        case MINUS:
-          return new IntValue(op1.javaInt - op2.javaInt);
-        case MULT:
-          return new IntValue(op1.javaInt * op2.javaInt);
-        case DIV:
-          return new IntValue(op1.javaInt / op2.javaInt);
-        default:
-          throw new Error();
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant) {
+        int i1 = ((IntConstant) op1).javaInt;
+        int i2 = ((IntConstant) op2).javaInt;
+        switch (arith.op) {
+          case PLUS:
+            return new IntConstant(i1 + i2);
+          case MINUS:
+            return new IntConstant(i1 - i2);
+          case MULT:
+            return new IntConstant(i1 * i2);
+          case DIV:
+            if (i2 != 0)
+              return new IntConstant(i1 / i2);
+            break;
+          default:
+            throw new Error();
+        }
       }
-      
+
+      return new IntArithmetic(arith.op, op1, op2);
     } else if (e instanceof IntComparison) {
       IntComparison intComp = (IntComparison) e;
+      Expression op1 = fold(intComp.operand1);
+      Expression op2 = fold(intComp.operand2);
 
-      IntValue op1 = (IntValue) evaluate(intComp.operand1);
-      IntValue op2 = (IntValue) evaluate(intComp.operand2);
-      
-      return new BoolValue(op1.javaInt == op2.javaInt);
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant)
+        return new BoolConstant(((IntConstant) op1).javaInt == ((IntConstant) op2).javaInt);
+
+      return new IntComparison(op1, op2);
     } else if (e instanceof If) {
       If ifE = (If) e;
+      Expression guard = fold(ifE.guard);
+
+      if (guard instanceof BoolConstant)
+        return fold(((BoolConstant) guard).javaBool ? ifE.t : ifE.f);
+
+      return new If(guard, fold(ifE.t), fold(ifE.f));
+    }
+
+    throw new Error();
+  }
+  
+  static Value evaluate (Expression e) {
+    switch (e.tag) {
+      case Expression.INT_CONSTANT: {
+        IntConstant intE = (IntConstant) e;
+
+        return IntValue.valueOf(intE.javaInt);
+      }
+      case Expression.BOOL_CONSTANT: {
+        BoolConstant boolE = (BoolConstant) e;
+
+        return BoolValue.valueOf(boolE.javaBool);
+      }
+      case Expression.INT_ARITHMETIC: {
+        IntArithmetic arith = (IntArithmetic) e;
+
+        IntValue op1 = (IntValue) evaluate(arith.operand1);
+        IntValue op2 = (IntValue) evaluate(arith.operand2);
       
-      BoolValue guard = (BoolValue) evaluate(ifE.guard);
+        switch (arith.op) {
+          case PLUS:
+            return IntValue.valueOf(op1.javaInt + op2.javaInt);
+          case MINUS:
+            return IntValue.valueOf(op1.javaInt - op2.javaInt);
+          case MULT:
+            return IntValue.valueOf(op1.javaInt * op2.javaInt);
+          case DIV:
+            return IntValue.valueOf(op1.javaInt / op2.javaInt);
+          default:
+            throw new Error();
+        }
+      
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+
+        IntValue op1 = (IntValue) evaluate(intComp.operand1);
+        IntValue op2 = (IntValue) evaluate(intComp.operand2);
       
-      if (guard.javaBool)
-        return evaluate(ifE.t);
-      else
-        return evaluate(ifE.f);
+        return BoolValue.valueOf(op1.javaInt == op2.javaInt);
+      }
+      case Expression.IF: {
+        If ifE = (If) e;
+      
+        BoolValue guard = (BoolValue) evaluate(ifE.guard);
+      
+        if (guard.javaBool)
+          return evaluate(ifE.t);
+        else
+          return evaluate(ifE.f);
+      }
     }
     
     throw new Error();
@@ -86,12 +154,24 @@ public class Interpreter {
 // Expressions
 
 class Expression {
+  static final int INT_CONSTANT = 0;
+  static final int BOOL_CONSTANT = 1;
+  static final int INT_ARITHMETIC = 2;
+  static final int INT_COMPARISON = 3;
+  static final int IF = 4;
+
+  final int tag;
+
+  public Expression(int tag) {
+    this.tag = tag;
+  }
 }
 
 class IntConstant extends Expression {
   final int javaInt;
 
   public IntConstant(int javaInt) {
+    super(INT_CONSTANT);
     this.javaInt = javaInt;
   }
 }
@@ -100,6 +180,7 @@ class BoolConstant extends Expression {
   final boolean javaBool;
 
   public BoolConstant(boolean javaBool) {
+    super(BOOL_CONSTANT);
     this.javaBool = javaBool;
   }
 }
@@ -111,6 +192,7 @@ class IntArithmetic extends Expression {
   final Expression operand1, operand2;
   
   public IntArithmetic(Operation op, Expression operand1, Expression operand2) {
+    super(INT_ARITHMETIC);
     this.op = op;
     this.operand1 = operand1;
     this.operand2 = operand2;
@@ -121,6 +203,7 @@ class IntComparison extends Expression {
   final Expression operand1, operand2;
   
   public IntComparison(Expression operand1, Expression operand2) {
+    super(INT_COMPARISON);
     this.operand1 = operand1;
     this.operand2 = operand2;
   }
@@ -130,6 +213,7 @@ class If extends Expression {
   final Expression guard, t, f;
 
   public If(Expression guard, Expression t, Expression f) {
+    super(IF);
     this.guard = guard;
     this.t = t;
     this.f = f;
@@ -142,12 +226,27 @@ class Value {
 }
 
 class IntValue extends Value {
+  static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+  static final IntValue[] CACHE = new IntValue[CACHE_HIGH - CACHE_LOW + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; i++)
+      CACHE[i] = new IntValue(CACHE_LOW + i);
+  }
+
   final int javaInt;
 
   public IntValue(int javaInt) {
     this.javaInt = javaInt;
   }
 
+  // Small values are shared; any other value is freshly allocated
+  static IntValue valueOf(int javaInt) {
+    if (javaInt >= CACHE_LOW && javaInt <= CACHE_HIGH)
+      return CACHE[javaInt - CACHE_LOW];
+    return new IntValue(javaInt);
+  }
+
   @Override
   public String toString() {
     return "" + this.javaInt;
@@ -155,12 +254,19 @@ class IntValue extends Value {
 }
 
 class BoolValue extends Value {
+  static final BoolValue TRUE = new BoolValue(true);
+  static final BoolValue FALSE = new BoolValue(false);
+
   final boolean javaBool;
 
   public BoolValue(boolean javaBool) {
     this.javaBool = javaBool;
   }
 
+  static BoolValue valueOf(boolean javaBool) {
+    return javaBool ? TRUE : FALSE;
+  }
+
   @Override
   public String toString() {
     return "" + this.javaBool;
@@ -168,10 +274,12 @@ class BoolValue extends Value {
   
 }
 
+// A program's expression is folded once, when the Program is built, so
+// evaluating it again does not fold it again
 class Program {
   final Expression e;
 
   public Program(Expression e) {
-    this.e = e;
+    this.e = Interpreter.fold(e);
   }
 }
\ No newline at end of file
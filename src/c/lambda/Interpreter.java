@@ -1,84 +1,389 @@
 package c.lambda;
 
-import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import c.lambda.IntArithmetic.Operation;
-import util.List;
+import util.Bindings;
+import util.Sink;
+import util.Symbol;
 
 public class Interpreter {
   
   static void interpret (Program p, Environment env) {
-    System.out.println(evaluate(p.e, env));
+    interpret(p, env, Sink.SYSTEM_OUT);
   }
   
-  static Value evaluate (Expression e, final Environment env) {
-    if (e instanceof IntConstant) {
-      IntConstant intE = (IntConstant) e;
+  static void interpret (Program p, Environment env, Sink out) {
+    interpret(p, env, false, out);
+  }
+  
+  static void interpret (Program p, Environment env, boolean parallel) {
+    interpret(p, env, parallel, Sink.SYSTEM_OUT);
+  }
+  
+  static void interpret (Program p, Environment env, boolean parallel, Sink out) {
+    out.println(evaluate(p, env, parallel));
+  }
+  
+  static Value evaluate (Program p, Environment env) {
+    return evaluate(p, env, false);
+  }
+  
+  static Value evaluate (Program p, Environment env, boolean parallel) {
+    Expression e = resolve(p.e, env);
+
+    // Forked operands run on the common pool's worker threads, whose stack
+    // size is the JVM's default for new threads (-Xss on HotSpot) and can't
+    // be set per pool. A program that only fits in a larger stack given to
+    // the calling thread, e.g. by the Thread constructor, can overflow in
+    // parallel mode where it would not sequentially.
+    if (parallel)
+      return ForkJoinPool.commonPool().invoke(new EvaluateTask(parallelize(e).e, env));
+    else
+      return evaluate(e, env);
+  }
+  
+  // Constant folding: arithmetic and comparisons over constants, Ifs with
+  // constant guards and lambdas applied to constants are reduced once,
+  // before the program runs. Anything that could fail at run time is kept.
+  static Expression fold (Expression e) {
+    if (e instanceof IntConstant || e instanceof BoolConstant || e instanceof Variable) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+      Expression op1 = fold(arith.operand1);
+      Expression op2 = fold(arith.operand2);
+
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant) {
+        int i1 = ((IntConstant) op1).javaInt;
+        int i2 = ((IntConstant) op2).javaInt;
+        switch (arith.op) {
+          case PLUS:
+            return new IntConstant(i1 + i2);
+          case MINUS:
+            return new IntConstant(i1 - i2);
+          case MULT:
+            return new IntConstant(i1 * i2);
+          case DIV:
+            if (i2 != 0)
+              return new IntConstant(i1 / i2);
+            break;
+          default:
+            throw new Error();
+        }
+      }
+
+      return new IntArithmetic(arith.op, op1, op2);
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+      Expression op1 = fold(intComp.operand1);
+      Expression op2 = fold(intComp.operand2);
 
-      return new IntValue(intE.javaInt);
-    } else if (e instanceof BoolConstant) {
-      BoolConstant boolE = (BoolConstant) e;
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant)
+        return new BoolConstant(((IntConstant) op1).javaInt == ((IntConstant) op2).javaInt);
 
-      return new BoolValue(boolE.javaBool);
+      return new IntComparison(op1, op2);
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+      Expression guard = fold(ifE.guard);
+
+      if (guard instanceof BoolConstant)
+        return fold(((BoolConstant) guard).javaBool ? ifE.t : ifE.f);
+
+      return new If(guard, fold(ifE.t), fold(ifE.f));
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument, fold(lambdaDef.body));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+      Expression lambda = fold(lambdaApp.lambda);
+      Expression argument = fold(lambdaApp.argument);
+
+      // A constant argument has no effects to lose and no names to capture
+      if (lambda instanceof LambdaDef
+          && (argument instanceof IntConstant || argument instanceof BoolConstant)) {
+        LambdaDef lambdaDef = (LambdaDef) lambda;
+
+        return fold(substitute(lambdaDef.body, lambdaDef.formalArgument, argument));
+      }
+
+      return new LambdaApp(lambda, argument);
+    }
+
+    throw new Error();
+  }
+  
+  // Replaces the free occurrences of var in e with a constant
+  static Expression substitute (Expression e, Variable var, Expression constant) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
     } else if (e instanceof IntArithmetic) {
       IntArithmetic arith = (IntArithmetic) e;
 
-      IntValue op1 = (IntValue) evaluate(arith.operand1, env);
-      IntValue op2 = (IntValue) evaluate(arith.operand2, env);
-      
-      switch (arith.op) {
-        case PLUS:
-          return new IntValue(op1.javaInt + op2.javaInt);
-        case MINUS:
-          return new IntValue(op1.javaInt - op2.javaInt);
-        case MULT:
-          return new IntValue(op1.javaInt * op2.javaInt);
-        case DIV:
-          return new IntValue(op1.javaInt / op2.javaInt);
-        default:
-          throw new Error();
-      }
-      
+      return new IntArithmetic(arith.op,
+          substitute(arith.operand1, var, constant),
+          substitute(arith.operand2, var, constant));
     } else if (e instanceof IntComparison) {
       IntComparison intComp = (IntComparison) e;
 
-      IntValue op1 = (IntValue) evaluate(intComp.operand1, env);
-      IntValue op2 = (IntValue) evaluate(intComp.operand2, env);
-      
-      return new BoolValue(op1.javaInt == op2.javaInt);
+      return new IntComparison(
+          substitute(intComp.operand1, var, constant),
+          substitute(intComp.operand2, var, constant));
     } else if (e instanceof If) {
       If ifE = (If) e;
-      
-      BoolValue guard = (BoolValue) evaluate(ifE.guard, env);
-      
-      if (guard.javaBool)
-        return evaluate(ifE.t, env);
-      else
-        return evaluate(ifE.f, env);
+
+      return new If(
+          substitute(ifE.guard, var, constant),
+          substitute(ifE.t, var, constant),
+          substitute(ifE.f, var, constant));
     } else if (e instanceof Variable) {
       Variable v = (Variable) e;
-      
-      return env.lookup(v);
+
+      return v.symbol == var.symbol ? constant : v;
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      if (lambdaDef.formalArgument.symbol == var.symbol)
+        return e;
+      return new LambdaDef(lambdaDef.formalArgument,
+          substitute(lambdaDef.body, var, constant));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          substitute(lambdaApp.lambda, var, constant),
+          substitute(lambdaApp.argument, var, constant));
+    }
+
+    throw new Error();
+  }
+  
+  // Lexical addressing: every Variable bound in scope is replaced by its
+  // depth in the environment, so evaluation never compares names.
+  static Expression resolve (Expression e, Environment scope) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+
+      return new IntArithmetic(arith.op,
+          resolve(arith.operand1, scope),
+          resolve(arith.operand2, scope));
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+
+      return new IntComparison(
+          resolve(intComp.operand1, scope),
+          resolve(intComp.operand2, scope));
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+
+      return new If(
+          resolve(ifE.guard, scope),
+          resolve(ifE.t, scope),
+          resolve(ifE.f, scope));
+    } else if (e instanceof Variable) {
+      Variable v = (Variable) e;
+      int depth = scope.depth(v);
+
+      // Unbound variables are left alone and fail when evaluated
+      return depth < 0 ? v : new LexicalVariable(v, depth);
     } else if (e instanceof LambdaDef) {
-      final LambdaDef lambdaDef = (LambdaDef) e;
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument,
+          resolve(lambdaDef.body, scope.bind(lambdaDef.formalArgument, null)));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          resolve(lambdaApp.lambda, scope),
+          resolve(lambdaApp.argument, scope));
+    }
+
+    throw new Error();
+  }
+  
+  // Parallel evaluation: nodes whose two operands are both estimated to
+  // cost at least FORK_THRESHOLD are wrapped in a Parallel, which evaluates
+  // its second operand as a ForkJoin task while the current thread evaluates
+  // the first. The estimate counts nodes, and the body of a lambda wherever
+  // the lambda is applied directly; applying any other value is presumed to
+  // be worth a task. At run time a Parallel only forks while few tasks are
+  // queued, so recursive calls stop forking once every core is busy.
+  static final int FORK_THRESHOLD = 256;
+  static final int SURPLUS = 3;
+
+  static Estimate parallelize (Expression e) {
+    switch (e.tag) {
+      case Expression.INT_ARITHMETIC: {
+        IntArithmetic arith = (IntArithmetic) e;
+        Estimate op1 = parallelize(arith.operand1);
+        Estimate op2 = parallelize(arith.operand2);
+
+        return fork(new IntArithmetic(arith.op, op1.e, op2.e), op1, op2, 1 + op1.cost + op2.cost);
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+        Estimate op1 = parallelize(intComp.operand1);
+        Estimate op2 = parallelize(intComp.operand2);
+
+        return fork(new IntComparison(op1.e, op2.e), op1, op2, 1 + op1.cost + op2.cost);
+      }
+      case Expression.IF: {
+        If ifE = (If) e;
+        Estimate guard = parallelize(ifE.guard);
+        Estimate t = parallelize(ifE.t);
+        Estimate f = parallelize(ifE.f);
+
+        return new Estimate(new If(guard.e, t.e, f.e), 1 + guard.cost + Math.max(t.cost, f.cost));
+      }
+      case Expression.LAMBDA_DEF: {
+        LambdaDef lambdaDef = (LambdaDef) e;
+        Estimate body = parallelize(lambdaDef.body);
+
+        return new Estimate(new LambdaDef(lambdaDef.formalArgument, body.e), 1, body.cost);
+      }
+      case Expression.LAMBDA_APP: {
+        LambdaApp lambdaApp = (LambdaApp) e;
+        Estimate lambda = parallelize(lambdaApp.lambda);
+        Estimate argument = parallelize(lambdaApp.argument);
+
+        return fork(new LambdaApp(lambda.e, argument.e), lambda, argument,
+            1 + lambda.cost + argument.cost + lambda.callCost);
+      }
+      default:
+        return new Estimate(e, 1);
+    }
+  }
+
+  static Estimate fork (Expression e, Estimate op1, Estimate op2, int cost) {
+    if (op1.cost >= FORK_THRESHOLD && op2.cost >= FORK_THRESHOLD)
+      return new Estimate(new Parallel(e, op1.e, op2.e), cost);
+    return new Estimate(e, cost);
+  }
+
+  // The value of a binary node whose operands are already evaluated
+  static Value combine (Expression e, Value v1, Value v2) {
+    switch (e.tag) {
+      case Expression.INT_ARITHMETIC:
+        return arithmetic(((IntArithmetic) e).op, ((IntValue) v1).javaInt, ((IntValue) v2).javaInt);
+      case Expression.INT_COMPARISON:
+        return BoolValue.valueOf(((IntValue) v1).javaInt == ((IntValue) v2).javaInt);
+      case Expression.LAMBDA_APP:
+        return (Value) ((LambdaValue) v1).javaLambda.l(v2);
+    }
+
+    throw new Error();
+  }
+
+  static IntValue arithmetic (Operation op, int op1, int op2) {
+    switch (op) {
+      case PLUS:
+        return IntValue.valueOf(op1 + op2);
+      case MINUS:
+        return IntValue.valueOf(op1 - op2);
+      case MULT:
+        return IntValue.valueOf(op1 * op2);
+      case DIV:
+        return IntValue.valueOf(op1 / op2);
+      default:
+        throw new Error();
+    }
+  }
+
+  static Value evaluate (Expression e, final Environment env) {
+    switch (e.tag) {
+      case Expression.INT_CONSTANT: {
+        IntConstant intE = (IntConstant) e;
+
+        return IntValue.valueOf(intE.javaInt);
+      }
+      case Expression.BOOL_CONSTANT: {
+        BoolConstant boolE = (BoolConstant) e;
+
+        return BoolValue.valueOf(boolE.javaBool);
+      }
+      case Expression.INT_ARITHMETIC: {
+        IntArithmetic arith = (IntArithmetic) e;
+
+        IntValue op1 = (IntValue) evaluate(arith.operand1, env);
+        IntValue op2 = (IntValue) evaluate(arith.operand2, env);
+      
+        return arithmetic(arith.op, op1.javaInt, op2.javaInt);
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+
+        IntValue op1 = (IntValue) evaluate(intComp.operand1, env);
+        IntValue op2 = (IntValue) evaluate(intComp.operand2, env);
+      
+        return BoolValue.valueOf(op1.javaInt == op2.javaInt);
+      }
+      case Expression.IF: {
+        If ifE = (If) e;
+      
+        BoolValue guard = (BoolValue) evaluate(ifE.guard, env);
+      
+        if (guard.javaBool)
+          return evaluate(ifE.t, env);
+        else
+          return evaluate(ifE.f, env);
+      }
+      case Expression.LEXICAL_VARIABLE: {
+        LexicalVariable lv = (LexicalVariable) e;
+      
+        return env.lookup(lv.depth);
+      }
+      case Expression.VARIABLE: {
+        Variable v = (Variable) e;
       
-      return new LambdaValue(new JavaLambda() {
-        @Override
-        public Object l(Object arg) {
-          Value argument = (Value) arg;
+        return env.lookup(v);
+      }
+      case Expression.LAMBDA_DEF: {
+        final LambdaDef lambdaDef = (LambdaDef) e;
+      
+        return new LambdaValue(new JavaLambda() {
+          @Override
+          public Object l(Object arg) {
+            Value argument = (Value) arg;
           
-          Environment newEnv = env.bind(lambdaDef.formalArgument, argument);
+            Environment newEnv = env.bind(lambdaDef.formalArgument, argument);
           
-          return evaluate(lambdaDef.body, newEnv);
-        }
-      });
-    } else if (e instanceof LambdaApp) {
-      LambdaApp lambdaApp = (LambdaApp) e;
+            return evaluate(lambdaDef.body, newEnv);
+          }
+        });
+      }
+      case Expression.LAMBDA_APP: {
+        LambdaApp lambdaApp = (LambdaApp) e;
 
       
-      LambdaValue lambda = (LambdaValue) evaluate(lambdaApp.lambda, env);
+        LambdaValue lambda = (LambdaValue) evaluate(lambdaApp.lambda, env);
       
-      return (Value) lambda.javaLambda.l(evaluate(lambdaApp.argument, env));
+        return (Value) lambda.javaLambda.l(evaluate(lambdaApp.argument, env));
+      }
+      case Expression.PARALLEL: {
+        Parallel parallel = (Parallel) e;
+
+        if (!ForkJoinTask.inForkJoinPool() || ForkJoinTask.getSurplusQueuedTaskCount() > SURPLUS)
+          return combine(parallel.e, evaluate(parallel.operand1, env), evaluate(parallel.operand2, env));
+
+        EvaluateTask task = new EvaluateTask(parallel.operand2, env);
+        task.fork();
+        Value v1;
+        try {
+          v1 = evaluate(parallel.operand1, env);
+        } catch (Throwable t) {
+          // Nothing will join the task, so it must not start; one that has
+          // started runs on until it returns or overflows its stack
+          task.cancel(false);
+          throw t;
+        }
+        return combine(parallel.e, v1, task.join());
+      }
     }
     
     throw new Error();
@@ -138,57 +443,112 @@ public class Interpreter {
                             new Variable("y"),
                             new Variable("x")))),
                 Environment.EMPTY)));
+
+    // fib(20) = 6765, with the two recursive calls of every fib evaluated
+    // in parallel while there are idle cores
+    Expression zHalf =
+        new LambdaDef(
+            new Variable("x"),
+            new LambdaApp(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("v"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("x"),
+                            new Variable("x")),
+                        new Variable("v")))));
+    interpret (new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaDef(
+                    new Variable("f"),
+                    new LambdaApp(zHalf, zHalf)),
+                new LambdaDef(
+                    new Variable("fib"),
+                    new LambdaDef(
+                        new Variable("n"),
+                        new If(
+                            new IntComparison(
+                                new Variable("n"),
+                                new IntConstant(0)),
+                            new IntConstant(0),
+                            new If(
+                                new IntComparison(
+                                    new Variable("n"),
+                                    new IntConstant(1)),
+                                new IntConstant(1),
+                                new IntArithmetic(
+                                    Operation.PLUS,
+                                    new LambdaApp(
+                                        new Variable("fib"),
+                                        new IntArithmetic(
+                                            Operation.MINUS,
+                                            new Variable("n"),
+                                            new IntConstant(1))),
+                                    new LambdaApp(
+                                        new Variable("fib"),
+                                        new IntArithmetic(
+                                            Operation.MINUS,
+                                            new Variable("n"),
+                                            new IntConstant(2))))))))),
+            new IntConstant(20))),
+        Environment.EMPTY,
+        true);
   }
 
 }
 
 
-class Bind {
-	final Variable var;
-	final Value	 val;
-
-	public Bind(Variable var, Value val) {
-		this.var = var;
-		this.val = val;
-	}
-}
-
 class Environment {
-  public static Environment EMPTY = new Environment(List.EMPTY);
-	private List binds;
+  public static final Environment EMPTY = new Environment(Bindings.<Value>empty());
+	private final Bindings<Value> binds;
 
-	private Environment(List binds) { this.binds = binds; }
+	private Environment(Bindings<Value> binds) { this.binds = binds; }
 	
 	public Environment bind(Variable va, Value vv) {
-	  return new Environment(binds.add(new Bind(va,vv)));
+	  return new Environment(binds.bind(va.symbol, vv));
 	}
 
 	public Value lookup(Variable v) {
-		return lookup(v, binds);
+		return binds.lookup(v.symbol);
 	}
 
-	public Value lookup(Variable v, List rest) {
-		if (rest == null)
-			throw new NoSuchElementException();
-
-		Bind b = (Bind) rest.el;
+	public Value lookup(int depth) {
+		return binds.get(depth);
+	}
 
-		if (v.name.equals(b.var.name))
-			return b.val;
-		else
-			return lookup(v, rest.rest);
+	public int depth(Variable v) {
+		return binds.depth(v.symbol);
 	}
 }
 
 // Expressions
 
 class Expression {
+  static final int INT_CONSTANT = 0;
+  static final int BOOL_CONSTANT = 1;
+  static final int INT_ARITHMETIC = 2;
+  static final int INT_COMPARISON = 3;
+  static final int IF = 4;
+  static final int VARIABLE = 5;
+  static final int LEXICAL_VARIABLE = 6;
+  static final int LAMBDA_DEF = 7;
+  static final int LAMBDA_APP = 8;
+  static final int PARALLEL = 9;
+
+  final int tag;
+
+  public Expression(int tag) {
+    this.tag = tag;
+  }
 }
 
 class IntConstant extends Expression {
   final int javaInt;
 
   public IntConstant(int javaInt) {
+    super(INT_CONSTANT);
     this.javaInt = javaInt;
   }
 }
@@ -197,6 +557,7 @@ class BoolConstant extends Expression {
   final boolean javaBool;
 
   public BoolConstant(boolean javaBool) {
+    super(BOOL_CONSTANT);
     this.javaBool = javaBool;
   }
 }
@@ -208,6 +569,7 @@ class IntArithmetic extends Expression {
   final Expression operand1, operand2;
   
   public IntArithmetic(Operation op, Expression operand1, Expression operand2) {
+    super(INT_ARITHMETIC);
     this.op = op;
     this.operand1 = operand1;
     this.operand2 = operand2;
@@ -218,6 +580,7 @@ class IntComparison extends Expression {
   final Expression operand1, operand2;
   
   public IntComparison(Expression operand1, Expression operand2) {
+    super(INT_COMPARISON);
     this.operand1 = operand1;
     this.operand2 = operand2;
   }
@@ -227,6 +590,7 @@ class If extends Expression {
   final Expression guard, t, f;
 
   public If(Expression guard, Expression t, Expression f) {
+    super(IF);
     this.guard = guard;
     this.t = t;
     this.f = f;
@@ -235,9 +599,23 @@ class If extends Expression {
 
 class Variable extends Expression {
   final String name;
+  final Symbol symbol;
 
   public Variable(String name) {
+    super(VARIABLE);
     this.name = name;
+    this.symbol = Symbol.intern(name);
+  }
+}
+
+class LexicalVariable extends Expression {
+  final Variable var;
+  final int depth;
+
+  public LexicalVariable(Variable var, int depth) {
+    super(LEXICAL_VARIABLE);
+    this.var = var;
+    this.depth = depth;
   }
 }
 
@@ -246,6 +624,7 @@ class LambdaDef extends Expression {
   final Expression body;
 
   public LambdaDef(Variable formalArgument, Expression body) {
+    super(LAMBDA_DEF);
     this.formalArgument = formalArgument;
     this.body = body;
   }
@@ -256,23 +635,87 @@ class LambdaApp extends Expression {
   final Expression argument;
 
   public LambdaApp(Expression lambda, Expression argument) {
+    super(LAMBDA_APP);
     this.lambda = lambda;
     this.argument = argument;
   }
 }
 
+// An IntArithmetic, IntComparison or LambdaApp whose operands are evaluated
+// in parallel
+class Parallel extends Expression {
+  final Expression e;
+  final Expression operand1, operand2;
+
+  public Parallel(Expression e, Expression operand1, Expression operand2) {
+    super(PARALLEL);
+    this.e = e;
+    this.operand1 = operand1;
+    this.operand2 = operand2;
+  }
+}
+
+class Estimate {
+  final Expression e;
+  final int cost;
+  // The cost of applying e's value, if it is known to be a lambda
+  final int callCost;
+
+  public Estimate(Expression e, int cost) {
+    this(e, cost, Interpreter.FORK_THRESHOLD);
+  }
+
+  public Estimate(Expression e, int cost, int callCost) {
+    this.e = e;
+    this.cost = cost;
+    this.callCost = callCost;
+  }
+}
+
+class EvaluateTask extends RecursiveTask<Value> {
+  private static final long serialVersionUID = 1L;
+
+  final Expression e;
+  final Environment env;
+
+  public EvaluateTask(Expression e, Environment env) {
+    this.e = e;
+    this.env = env;
+  }
+
+  @Override
+  protected Value compute() {
+    return Interpreter.evaluate(e, env);
+  }
+}
+
 // Values
 
 class Value {
 }
 
 class IntValue extends Value {
+  static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+  static final IntValue[] CACHE = new IntValue[CACHE_HIGH - CACHE_LOW + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; i++)
+      CACHE[i] = new IntValue(CACHE_LOW + i);
+  }
+
   final int javaInt;
 
   public IntValue(int javaInt) {
     this.javaInt = javaInt;
   }
 
+  // Small values are shared; any other value is freshly allocated
+  static IntValue valueOf(int javaInt) {
+    if (javaInt >= CACHE_LOW && javaInt <= CACHE_HIGH)
+      return CACHE[javaInt - CACHE_LOW];
+    return new IntValue(javaInt);
+  }
+
   @Override
   public String toString() {
     return "" + this.javaInt;
@@ -280,12 +723,19 @@ class IntValue extends Value {
 }
 
 class BoolValue extends Value {
+  static final BoolValue TRUE = new BoolValue(true);
+  static final BoolValue FALSE = new BoolValue(false);
+
   final boolean javaBool;
 
   public BoolValue(boolean javaBool) {
     this.javaBool = javaBool;
   }
 
+  static BoolValue valueOf(boolean javaBool) {
+    return javaBool ? TRUE : FALSE;
+  }
+
   @Override
   public String toString() {
     return "" + this.javaBool;
@@ -303,10 +753,12 @@ class LambdaValue extends Value {
   }
 }
 
+// A program's expression is folded once, when the Program is built, so
+// evaluating it again does not fold it again
 class Program {
   final Expression e;
 
   public Program(Expression e) {
-    this.e = e;
+    this.e = Interpreter.fold(e);
   }
 }
\ No newline at end of file
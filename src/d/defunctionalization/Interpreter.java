@@ -1,86 +1,492 @@
 package d.defunctionalization;
 
-import java.util.NoSuchElementException;
-
-import util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import util.Bindings;
+import util.Sink;
+import util.Symbol;
 import d.defunctionalization.IntArithmetic.Operation;
 
 public class Interpreter {
   
   static void interpret (Program p, Environment env) {
-    System.out.println(evaluate(p.e, env));
+    interpret(p, env, Sink.SYSTEM_OUT);
+  }
+  
+  static void interpret (Program p, Environment env, Sink out) {
+    interpret(p, env, false, false, out);
+  }
+  
+  static void interpret (Program p, Environment env, boolean flatClosures) {
+    interpret(p, env, flatClosures, false);
+  }
+  
+  static void interpret (Program p, Environment env, boolean flatClosures, boolean parallel) {
+    interpret(p, env, flatClosures, parallel, Sink.SYSTEM_OUT);
+  }
+  
+  static void interpret (Program p, Environment env, boolean flatClosures, boolean parallel, Sink out) {
+    out.println(evaluate(p, env, flatClosures, parallel));
+  }
+  
+  static Value evaluate (Program p, Environment env) {
+    return evaluate(p, env, false, false);
+  }
+  
+  static Value evaluate (Program p, Environment env, boolean flatClosures, boolean parallel) {
+    Expression e = flatClosures ? convert(p.e, env, null) : resolve(p.e, env);
+    
+    // Forked operands run on the common pool's worker threads, whose stack
+    // size is the JVM's default for new threads (-Xss on HotSpot) and can't
+    // be set per pool. A program that only fits in a larger stack given to
+    // the calling thread, e.g. by the Thread constructor, can overflow in
+    // parallel mode where it would not sequentially.
+    if (parallel)
+      return ForkJoinPool.commonPool().invoke(new EvaluateTask(parallelize(e).e, env));
+    else
+      return evaluate(e, env);
   }
   
   static Value apply (Closure c, Value argument) {
-    if (c instanceof CL1) {
-      CL1 cl1 = (CL1) c;
+    switch (c.tag) {
+      case Closure.CL1: {
+        CL1 cl1 = (CL1) c;
+
+        Environment newEnv = cl1.env.bind(cl1.lambdaDef.formalArgument, argument);
+
+        return evaluate(cl1.lambdaDef.body, newEnv);
+      }
+      case Closure.CL_FLAT: {
+        CLFlat flat = (CLFlat) c;
 
-      Environment newEnv = cl1.env.bind(cl1.lambdaDef.formalArgument, argument);
+        Environment newEnv = Environment.flat(flat.captured).bind(flat.lambdaDef.formalArgument, argument);
 
-      return evaluate(cl1.lambdaDef.body, newEnv);
+        return evaluate(flat.lambdaDef.body, newEnv);
+      }
     }
     
     throw new Error();
   }
   
-  static Value evaluate (Expression e, Environment env) {
-    if (e instanceof IntConstant) {
-      IntConstant intE = (IntConstant) e;
+  // Constant folding: arithmetic and comparisons over constants, Ifs with
+  // constant guards and lambdas applied to constants are reduced once,
+  // before the program runs. Anything that could fail at run time is kept.
+  static Expression fold (Expression e) {
+    if (e instanceof IntConstant || e instanceof BoolConstant || e instanceof Variable) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+      Expression op1 = fold(arith.operand1);
+      Expression op2 = fold(arith.operand2);
+
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant) {
+        int i1 = ((IntConstant) op1).javaInt;
+        int i2 = ((IntConstant) op2).javaInt;
+        switch (arith.op) {
+          case PLUS:
+            return new IntConstant(i1 + i2);
+          case MINUS:
+            return new IntConstant(i1 - i2);
+          case MULT:
+            return new IntConstant(i1 * i2);
+          case DIV:
+            if (i2 != 0)
+              return new IntConstant(i1 / i2);
+            break;
+          default:
+            throw new Error();
+        }
+      }
+
+      return new IntArithmetic(arith.op, op1, op2);
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+      Expression op1 = fold(intComp.operand1);
+      Expression op2 = fold(intComp.operand2);
 
-      return new IntValue(intE.javaInt);
-    } else if (e instanceof BoolConstant) {
-      BoolConstant boolE = (BoolConstant) e;
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant)
+        return new BoolConstant(((IntConstant) op1).javaInt == ((IntConstant) op2).javaInt);
 
-      return new BoolValue(boolE.javaBool);
+      return new IntComparison(op1, op2);
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+      Expression guard = fold(ifE.guard);
+
+      if (guard instanceof BoolConstant)
+        return fold(((BoolConstant) guard).javaBool ? ifE.t : ifE.f);
+
+      return new If(guard, fold(ifE.t), fold(ifE.f));
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument, fold(lambdaDef.body));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+      Expression lambda = fold(lambdaApp.lambda);
+      Expression argument = fold(lambdaApp.argument);
+
+      // A constant argument has no effects to lose and no names to capture
+      if (lambda instanceof LambdaDef
+          && (argument instanceof IntConstant || argument instanceof BoolConstant)) {
+        LambdaDef lambdaDef = (LambdaDef) lambda;
+
+        return fold(substitute(lambdaDef.body, lambdaDef.formalArgument, argument));
+      }
+
+      return new LambdaApp(lambda, argument);
+    }
+
+    throw new Error();
+  }
+  
+  // Replaces the free occurrences of var in e with a constant
+  static Expression substitute (Expression e, Variable var, Expression constant) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
     } else if (e instanceof IntArithmetic) {
       IntArithmetic arith = (IntArithmetic) e;
 
-      IntValue op1 = (IntValue) evaluate(arith.operand1, env);
-      IntValue op2 = (IntValue) evaluate(arith.operand2, env);
-      
-      switch (arith.op) {
-        case PLUS:
-          return new IntValue(op1.javaInt + op2.javaInt);
-        case MINUS:
-          return new IntValue(op1.javaInt - op2.javaInt);
-        case MULT:
-          return new IntValue(op1.javaInt * op2.javaInt);
-        case DIV:
-          return new IntValue(op1.javaInt / op2.javaInt);
-        default:
-          throw new Error();
-      }
-      
+      return new IntArithmetic(arith.op,
+          substitute(arith.operand1, var, constant),
+          substitute(arith.operand2, var, constant));
     } else if (e instanceof IntComparison) {
       IntComparison intComp = (IntComparison) e;
 
-      IntValue op1 = (IntValue) evaluate(intComp.operand1, env);
-      IntValue op2 = (IntValue) evaluate(intComp.operand2, env);
-      
-      return new BoolValue(op1.javaInt == op2.javaInt);
+      return new IntComparison(
+          substitute(intComp.operand1, var, constant),
+          substitute(intComp.operand2, var, constant));
     } else if (e instanceof If) {
       If ifE = (If) e;
-      
-      BoolValue guard = (BoolValue) evaluate(ifE.guard, env);
-      
-      if (guard.javaBool)
-        return evaluate(ifE.t, env);
-      else
-        return evaluate(ifE.f, env);
+
+      return new If(
+          substitute(ifE.guard, var, constant),
+          substitute(ifE.t, var, constant),
+          substitute(ifE.f, var, constant));
     } else if (e instanceof Variable) {
       Variable v = (Variable) e;
-      
-      return env.lookup(v);
+
+      return v.symbol == var.symbol ? constant : v;
     } else if (e instanceof LambdaDef) {
       LambdaDef lambdaDef = (LambdaDef) e;
-      
-      return new LambdaValue(new CL1(lambdaDef, env));
+
+      if (lambdaDef.formalArgument.symbol == var.symbol)
+        return e;
+      return new LambdaDef(lambdaDef.formalArgument,
+          substitute(lambdaDef.body, var, constant));
     } else if (e instanceof LambdaApp) {
       LambdaApp lambdaApp = (LambdaApp) e;
 
-      LambdaValue lambda = (LambdaValue) evaluate(lambdaApp.lambda, env);
+      return new LambdaApp(
+          substitute(lambdaApp.lambda, var, constant),
+          substitute(lambdaApp.argument, var, constant));
+    }
+
+    throw new Error();
+  }
+  
+  // Lexical addressing: every Variable bound in scope is replaced by its
+  // depth in the environment, so evaluation never compares names.
+  static Expression resolve (Expression e, Environment scope) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+
+      return new IntArithmetic(arith.op,
+          resolve(arith.operand1, scope),
+          resolve(arith.operand2, scope));
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+
+      return new IntComparison(
+          resolve(intComp.operand1, scope),
+          resolve(intComp.operand2, scope));
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+
+      return new If(
+          resolve(ifE.guard, scope),
+          resolve(ifE.t, scope),
+          resolve(ifE.f, scope));
+    } else if (e instanceof Variable) {
+      Variable v = (Variable) e;
+      int depth = scope.depth(v);
+
+      // Unbound variables are left alone and fail when evaluated
+      return depth < 0 ? v : new LexicalVariable(v, depth);
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument,
+          resolve(lambdaDef.body, scope.bind(lambdaDef.formalArgument, null)));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          resolve(lambdaApp.lambda, scope),
+          resolve(lambdaApp.argument, scope));
+    }
+
+    throw new Error();
+  }
+  
+  // Closure conversion: like resolve, but every LambdaDef becomes a
+  // FlatLambdaDef whose closures copy only its free variables, so a closure
+  // neither retains nor walks the environment it was defined in.
+  static Expression convert (Expression e, Environment locals, ClosureScope scope) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+
+      return new IntArithmetic(arith.op,
+          convert(arith.operand1, locals, scope),
+          convert(arith.operand2, locals, scope));
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+
+      return new IntComparison(
+          convert(intComp.operand1, locals, scope),
+          convert(intComp.operand2, locals, scope));
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+
+      return new If(
+          convert(ifE.guard, locals, scope),
+          convert(ifE.t, locals, scope),
+          convert(ifE.f, locals, scope));
+    } else if (e instanceof Variable) {
+      return address((Variable) e, locals, scope);
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      ClosureScope inner = new ClosureScope(locals, scope);
+      Expression body = convert(lambdaDef.body,
+          Environment.EMPTY.bind(lambdaDef.formalArgument, null), inner);
+
+      return new FlatLambdaDef(lambdaDef.formalArgument, body,
+          inner.addresses.toArray(new Expression[inner.addresses.size()]));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          convert(lambdaApp.lambda, locals, scope),
+          convert(lambdaApp.argument, locals, scope));
+    }
+
+    throw new Error();
+  }
+  
+  // Where v lives when the innermost lambda has the given locals: a local
+  // frame, a captured slot, or nowhere (left as an unbound Variable).
+  static Expression address (Variable v, Environment locals, ClosureScope scope) {
+    int depth = locals.depth(v);
+    if (depth >= 0)
+      return new LexicalVariable(v, depth);
+    else if (scope == null)
+      return v;
+    else
+      return scope.capture(v);
+  }
+  
+  static Value load (Expression address, Environment env) {
+    if (address instanceof LexicalVariable)
+      return env.lookup(((LexicalVariable) address).depth);
+    else
+      return env.captured(((CapturedVariable) address).index);
+  }
+  
+  // Parallel evaluation: nodes whose two operands are both estimated to
+  // cost at least FORK_THRESHOLD are wrapped in a Parallel, which evaluates
+  // its second operand as a ForkJoin task while the current thread evaluates
+  // the first. The estimate counts nodes, and the body of a lambda wherever
+  // the lambda is applied directly; applying any other value is presumed to
+  // be worth a task. At run time a Parallel only forks while few tasks are
+  // queued, so recursive calls stop forking once every core is busy.
+  static final int FORK_THRESHOLD = 256;
+  static final int SURPLUS = 3;
+
+  static Estimate parallelize (Expression e) {
+    switch (e.tag) {
+      case Expression.INT_ARITHMETIC: {
+        IntArithmetic arith = (IntArithmetic) e;
+        Estimate op1 = parallelize(arith.operand1);
+        Estimate op2 = parallelize(arith.operand2);
+
+        return fork(new IntArithmetic(arith.op, op1.e, op2.e), op1, op2, 1 + op1.cost + op2.cost);
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+        Estimate op1 = parallelize(intComp.operand1);
+        Estimate op2 = parallelize(intComp.operand2);
+
+        return fork(new IntComparison(op1.e, op2.e), op1, op2, 1 + op1.cost + op2.cost);
+      }
+      case Expression.IF: {
+        If ifE = (If) e;
+        Estimate guard = parallelize(ifE.guard);
+        Estimate t = parallelize(ifE.t);
+        Estimate f = parallelize(ifE.f);
+
+        return new Estimate(new If(guard.e, t.e, f.e), 1 + guard.cost + Math.max(t.cost, f.cost));
+      }
+      case Expression.LAMBDA_DEF: {
+        LambdaDef lambdaDef = (LambdaDef) e;
+        Estimate body = parallelize(lambdaDef.body);
+
+        return new Estimate(new LambdaDef(lambdaDef.formalArgument, body.e), 1, body.cost);
+      }
+      case Expression.FLAT_LAMBDA_DEF: {
+        FlatLambdaDef lambdaDef = (FlatLambdaDef) e;
+        Estimate body = parallelize(lambdaDef.body);
+
+        return new Estimate(new FlatLambdaDef(lambdaDef.formalArgument, body.e, lambdaDef.captures),
+            1 + lambdaDef.captures.length, body.cost);
+      }
+      case Expression.LAMBDA_APP: {
+        LambdaApp lambdaApp = (LambdaApp) e;
+        Estimate lambda = parallelize(lambdaApp.lambda);
+        Estimate argument = parallelize(lambdaApp.argument);
+
+        return fork(new LambdaApp(lambda.e, argument.e), lambda, argument,
+            1 + lambda.cost + argument.cost + lambda.callCost);
+      }
+      default:
+        return new Estimate(e, 1);
+    }
+  }
+
+  static Estimate fork (Expression e, Estimate op1, Estimate op2, int cost) {
+    if (op1.cost >= FORK_THRESHOLD && op2.cost >= FORK_THRESHOLD)
+      return new Estimate(new Parallel(e, op1.e, op2.e), cost);
+    return new Estimate(e, cost);
+  }
+
+  // The value of a binary node whose operands are already evaluated
+  static Value combine (Expression e, Value v1, Value v2) {
+    switch (e.tag) {
+      case Expression.INT_ARITHMETIC:
+        return arithmetic(((IntArithmetic) e).op, ((IntValue) v1).javaInt, ((IntValue) v2).javaInt);
+      case Expression.INT_COMPARISON:
+        return BoolValue.valueOf(((IntValue) v1).javaInt == ((IntValue) v2).javaInt);
+      case Expression.LAMBDA_APP:
+        return apply(((LambdaValue) v1).cl, v2);
+    }
+
+    throw new Error();
+  }
+
+  static IntValue arithmetic (Operation op, int op1, int op2) {
+    switch (op) {
+      case PLUS:
+        return IntValue.valueOf(op1 + op2);
+      case MINUS:
+        return IntValue.valueOf(op1 - op2);
+      case MULT:
+        return IntValue.valueOf(op1 * op2);
+      case DIV:
+        return IntValue.valueOf(op1 / op2);
+      default:
+        throw new Error();
+    }
+  }
+
+  static Value evaluate (Expression e, Environment env) {
+    switch (e.tag) {
+      case Expression.INT_CONSTANT: {
+        IntConstant intE = (IntConstant) e;
+
+        return IntValue.valueOf(intE.javaInt);
+      }
+      case Expression.BOOL_CONSTANT: {
+        BoolConstant boolE = (BoolConstant) e;
+
+        return BoolValue.valueOf(boolE.javaBool);
+      }
+      case Expression.INT_ARITHMETIC: {
+        IntArithmetic arith = (IntArithmetic) e;
+
+        IntValue op1 = (IntValue) evaluate(arith.operand1, env);
+        IntValue op2 = (IntValue) evaluate(arith.operand2, env);
+      
+        return arithmetic(arith.op, op1.javaInt, op2.javaInt);
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+
+        IntValue op1 = (IntValue) evaluate(intComp.operand1, env);
+        IntValue op2 = (IntValue) evaluate(intComp.operand2, env);
+      
+        return BoolValue.valueOf(op1.javaInt == op2.javaInt);
+      }
+      case Expression.IF: {
+        If ifE = (If) e;
+      
+        BoolValue guard = (BoolValue) evaluate(ifE.guard, env);
+      
+        if (guard.javaBool)
+          return evaluate(ifE.t, env);
+        else
+          return evaluate(ifE.f, env);
+      }
+      case Expression.LEXICAL_VARIABLE: {
+        LexicalVariable lv = (LexicalVariable) e;
+      
+        return env.lookup(lv.depth);
+      }
+      case Expression.CAPTURED_VARIABLE: {
+        CapturedVariable cv = (CapturedVariable) e;
+      
+        return env.captured(cv.index);
+      }
+      case Expression.VARIABLE: {
+        Variable v = (Variable) e;
+      
+        return env.lookup(v);
+      }
+      case Expression.LAMBDA_DEF: {
+        LambdaDef lambdaDef = (LambdaDef) e;
+      
+        return new LambdaValue(new CL1(lambdaDef, env));
+      }
+      case Expression.FLAT_LAMBDA_DEF: {
+        FlatLambdaDef lambdaDef = (FlatLambdaDef) e;
+      
+        Value[] captured = new Value[lambdaDef.captures.length];
+        for (int i = 0; i < captured.length; i++)
+          captured[i] = load(lambdaDef.captures[i], env);
+      
+        return new LambdaValue(new CLFlat(lambdaDef, captured));
+      }
+      case Expression.LAMBDA_APP: {
+        LambdaApp lambdaApp = (LambdaApp) e;
+
+        LambdaValue lambda = (LambdaValue) evaluate(lambdaApp.lambda, env);
       
-      return (Value) apply(lambda.cl, evaluate(lambdaApp.argument, env));
+        return (Value) apply(lambda.cl, evaluate(lambdaApp.argument, env));
+      }
+      case Expression.PARALLEL: {
+        Parallel parallel = (Parallel) e;
+
+        if (!ForkJoinTask.inForkJoinPool() || ForkJoinTask.getSurplusQueuedTaskCount() > SURPLUS)
+          return combine(parallel.e, evaluate(parallel.operand1, env), evaluate(parallel.operand2, env));
+
+        EvaluateTask task = new EvaluateTask(parallel.operand2, env);
+        task.fork();
+        Value v1;
+        try {
+          v1 = evaluate(parallel.operand1, env);
+        } catch (Throwable t) {
+          // Nothing will join the task, so it must not start; one that has
+          // started runs on until it returns or overflows its stack
+          task.cancel(false);
+          throw t;
+        }
+        return combine(parallel.e, v1, task.join());
+      }
     }
     
     throw new Error();
@@ -140,6 +546,75 @@ public class Interpreter {
                             new Variable("y"),
                             new Variable("x")))),
                 Environment.EMPTY)));
+
+    // Flat closures capture only their free variables
+    interpret (new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaDef(
+                    new Variable("x"),
+                    new LambdaDef(
+                        new Variable("y"),
+                        new IntArithmetic(
+                            Operation.MINUS,
+                            new Variable("x"),
+                            new Variable("y")))),
+                new IntConstant(10)),
+            new IntConstant(3))),
+        Environment.EMPTY.bind(new Variable("z"), new IntValue(0)),
+        true);
+
+    // fib(20) = 6765, with the two recursive calls of every fib evaluated
+    // in parallel while there are idle cores
+    Expression zHalf =
+        new LambdaDef(
+            new Variable("x"),
+            new LambdaApp(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("v"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("x"),
+                            new Variable("x")),
+                        new Variable("v")))));
+    interpret (new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaDef(
+                    new Variable("f"),
+                    new LambdaApp(zHalf, zHalf)),
+                new LambdaDef(
+                    new Variable("fib"),
+                    new LambdaDef(
+                        new Variable("n"),
+                        new If(
+                            new IntComparison(
+                                new Variable("n"),
+                                new IntConstant(0)),
+                            new IntConstant(0),
+                            new If(
+                                new IntComparison(
+                                    new Variable("n"),
+                                    new IntConstant(1)),
+                                new IntConstant(1),
+                                new IntArithmetic(
+                                    Operation.PLUS,
+                                    new LambdaApp(
+                                        new Variable("fib"),
+                                        new IntArithmetic(
+                                            Operation.MINUS,
+                                            new Variable("n"),
+                                            new IntConstant(1))),
+                                    new LambdaApp(
+                                        new Variable("fib"),
+                                        new IntArithmetic(
+                                            Operation.MINUS,
+                                            new Variable("n"),
+                                            new IntConstant(2))))))))),
+            new IntConstant(20))),
+        Environment.EMPTY,
+        false, true);
   }
 
 }
@@ -147,6 +622,14 @@ public class Interpreter {
 // Closures
 
 class Closure {
+  static final int CL1 = 0;
+  static final int CL_FLAT = 1;
+
+  final int tag;
+
+  public Closure(int tag) {
+    this.tag = tag;
+  }
 }
 
 class CL1 extends Closure {
@@ -154,59 +637,117 @@ class CL1 extends Closure {
   final Environment env;
 
   public CL1(LambdaDef lambdaDef, Environment env) {
+    super(CL1);
     this.lambdaDef = lambdaDef;
     this.env = env;
   }
 }
 
-// Environments
-
-class Bind {
-	final Variable var;
-	final Value	 val;
+class CLFlat extends Closure {
+  final FlatLambdaDef lambdaDef;
+  final Value[] captured;
 
-	public Bind(Variable var, Value val) {
-		this.var = var;
-		this.val = val;
-	}
+  public CLFlat(FlatLambdaDef lambdaDef, Value[] captured) {
+    super(CL_FLAT);
+    this.lambdaDef = lambdaDef;
+    this.captured = captured;
+  }
 }
 
+// Environments
+
 class Environment {
-  public static Environment EMPTY = new Environment(List.EMPTY);
-	private List binds;
+  public static final Environment EMPTY = new Environment(Bindings.<Value>empty(), new Value[0]);
+	private final Bindings<Value> binds;
+	private final Value[] captured;
+
+	private Environment(Bindings<Value> binds, Value[] captured) {
+		this.binds = binds;
+		this.captured = captured;
+	}
 
-	private Environment(List binds) { this.binds = binds; }
+	// The environment a flat closure's body starts from
+	public static Environment flat(Value[] captured) {
+		return new Environment(Bindings.<Value>empty(), captured);
+	}
 	
 	public Environment bind(Variable va, Value vv) {
-	  return new Environment(binds.add(new Bind(va,vv)));
+	  return new Environment(binds.bind(va.symbol, vv), captured);
 	}
 
-	public Value lookup(Variable v) {
-		return lookup(v, binds);
+	public Value captured(int index) {
+		return captured[index];
 	}
 
-	public Value lookup(Variable v, List rest) {
-		if (rest == null)
-			throw new NoSuchElementException();
+	public Value lookup(Variable v) {
+		return binds.lookup(v.symbol);
+	}
 
-		Bind b = (Bind) rest.el;
+	public Value lookup(int depth) {
+		return binds.get(depth);
+	}
 
-		if (v.name.equals(b.var.name))
-			return b.val;
-		else
-			return lookup(v, rest.rest);
+	public int depth(Variable v) {
+		return binds.depth(v.symbol);
 	}
 }
 
+// Free variables captured by the LambdaDef being converted, with their
+// addresses in the scope enclosing it
+class ClosureScope {
+  final Environment outerLocals;
+  final ClosureScope outer;
+  final ArrayList<Variable> vars = new ArrayList<>();
+  final ArrayList<Expression> addresses = new ArrayList<>();
+
+  public ClosureScope(Environment outerLocals, ClosureScope outer) {
+    this.outerLocals = outerLocals;
+    this.outer = outer;
+  }
+
+  Expression capture(Variable v) {
+    for (int i = 0; i < vars.size(); i++)
+      if (v.symbol == vars.get(i).symbol)
+        return new CapturedVariable(v, i);
+
+    Expression outerAddress = Interpreter.address(v, outerLocals, outer);
+    if (outerAddress instanceof Variable)
+      return v;
+
+    vars.add(v);
+    addresses.add(outerAddress);
+    return new CapturedVariable(v, vars.size() - 1);
+  }
+}
+
 // Expressions
 
 class Expression {
+  static final int INT_CONSTANT = 0;
+  static final int BOOL_CONSTANT = 1;
+  static final int INT_ARITHMETIC = 2;
+  static final int INT_COMPARISON = 3;
+  static final int IF = 4;
+  static final int VARIABLE = 5;
+  static final int LEXICAL_VARIABLE = 6;
+  static final int CAPTURED_VARIABLE = 7;
+  static final int LAMBDA_DEF = 8;
+  static final int FLAT_LAMBDA_DEF = 9;
+  static final int LAMBDA_APP = 10;
+  static final int PARALLEL = 11;
+
+  final int tag;
+
+  public Expression(int tag) {
+    this.tag = tag;
+  }
 }
 
 class IntConstant extends Expression {
   final int javaInt;
 
   public IntConstant(int javaInt) {
+    super(INT_CONSTANT);
     this.javaInt = javaInt;
   }
 }
@@ -215,6 +756,7 @@ class BoolConstant extends Expression {
   final boolean javaBool;
 
   public BoolConstant(boolean javaBool) {
+    super(BOOL_CONSTANT);
     this.javaBool = javaBool;
   }
 }
@@ -226,6 +768,7 @@ class IntArithmetic extends Expression {
   final Expression operand1, operand2;
   
   public IntArithmetic(Operation op, Expression operand1, Expression operand2) {
+    super(INT_ARITHMETIC);
     this.op = op;
     this.operand1 = operand1;
     this.operand2 = operand2;
@@ -236,6 +779,7 @@ class IntComparison extends Expression {
   final Expression operand1, operand2;
   
   public IntComparison(Expression operand1, Expression operand2) {
+    super(INT_COMPARISON);
     this.operand1 = operand1;
     this.operand2 = operand2;
   }
@@ -245,6 +789,7 @@ class If extends Expression {
   final Expression guard, t, f;
 
   public If(Expression guard, Expression t, Expression f) {
+    super(IF);
     this.guard = guard;
     this.t = t;
     this.f = f;
@@ -253,9 +798,34 @@ class If extends Expression {
 
 class Variable extends Expression {
   final String name;
+  final Symbol symbol;
 
   public Variable(String name) {
+    super(VARIABLE);
     this.name = name;
+    this.symbol = Symbol.intern(name);
+  }
+}
+
+class LexicalVariable extends Expression {
+  final Variable var;
+  final int depth;
+
+  public LexicalVariable(Variable var, int depth) {
+    super(LEXICAL_VARIABLE);
+    this.var = var;
+    this.depth = depth;
+  }
+}
+
+class CapturedVariable extends Expression {
+  final Variable var;
+  final int index;
+
+  public CapturedVariable(Variable var, int index) {
+    super(CAPTURED_VARIABLE);
+    this.var = var;
+    this.index = index;
   }
 }
 
@@ -264,8 +834,22 @@ class LambdaDef extends Expression {
   final Expression body;
 
   public LambdaDef(Variable formalArgument, Expression body) {
+    super(LAMBDA_DEF);
+    this.formalArgument = formalArgument;
+    this.body = body;
+  }
+}
+
+class FlatLambdaDef extends Expression {
+  final Variable formalArgument;
+  final Expression body;
+  final Expression[] captures;
+
+  public FlatLambdaDef(Variable formalArgument, Expression body, Expression[] captures) {
+    super(FLAT_LAMBDA_DEF);
     this.formalArgument = formalArgument;
     this.body = body;
+    this.captures = captures;
   }
 }
 
@@ -274,23 +858,87 @@ class LambdaApp extends Expression {
   final Expression argument;
 
   public LambdaApp(Expression lambda, Expression argument) {
+    super(LAMBDA_APP);
     this.lambda = lambda;
     this.argument = argument;
   }
 }
 
+// An IntArithmetic, IntComparison or LambdaApp whose operands are evaluated
+// in parallel
+class Parallel extends Expression {
+  final Expression e;
+  final Expression operand1, operand2;
+
+  public Parallel(Expression e, Expression operand1, Expression operand2) {
+    super(PARALLEL);
+    this.e = e;
+    this.operand1 = operand1;
+    this.operand2 = operand2;
+  }
+}
+
+class Estimate {
+  final Expression e;
+  final int cost;
+  // The cost of applying e's value, if it is known to be a lambda
+  final int callCost;
+
+  public Estimate(Expression e, int cost) {
+    this(e, cost, Interpreter.FORK_THRESHOLD);
+  }
+
+  public Estimate(Expression e, int cost, int callCost) {
+    this.e = e;
+    this.cost = cost;
+    this.callCost = callCost;
+  }
+}
+
+class EvaluateTask extends RecursiveTask<Value> {
+  private static final long serialVersionUID = 1L;
+
+  final Expression e;
+  final Environment env;
+
+  public EvaluateTask(Expression e, Environment env) {
+    this.e = e;
+    this.env = env;
+  }
+
+  @Override
+  protected Value compute() {
+    return Interpreter.evaluate(e, env);
+  }
+}
+
 // Values
 
 class Value {
 }
 
 class IntValue extends Value {
+  static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+  static final IntValue[] CACHE = new IntValue[CACHE_HIGH - CACHE_LOW + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; i++)
+      CACHE[i] = new IntValue(CACHE_LOW + i);
+  }
+
   final int javaInt;
 
   public IntValue(int javaInt) {
     this.javaInt = javaInt;
   }
 
+  // Small values are shared; any other value is freshly allocated
+  static IntValue valueOf(int javaInt) {
+    if (javaInt >= CACHE_LOW && javaInt <= CACHE_HIGH)
+      return CACHE[javaInt - CACHE_LOW];
+    return new IntValue(javaInt);
+  }
+
   @Override
   public String toString() {
     return "" + this.javaInt;
@@ -298,12 +946,19 @@ class IntValue extends Value {
 }
 
 class BoolValue extends Value {
+  static final BoolValue TRUE = new BoolValue(true);
+  static final BoolValue FALSE = new BoolValue(false);
+
   final boolean javaBool;
 
   public BoolValue(boolean javaBool) {
     this.javaBool = javaBool;
   }
 
+  static BoolValue valueOf(boolean javaBool) {
+    return javaBool ? TRUE : FALSE;
+  }
+
   @Override
   public String toString() {
     return "" + this.javaBool;
@@ -321,10 +976,12 @@ class LambdaValue extends Value {
   }
 }
 
+// A program's expression is folded once, when the Program is built, so
+// evaluating it again does not fold it again
 class Program {
   final Expression e;
 
   public Program(Expression e) {
-    this.e = e;
+    this.e = Interpreter.fold(e);
   }
 }
\ No newline at end of file
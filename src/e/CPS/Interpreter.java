@@ -1,146 +1,326 @@
 package e.CPS;
 
-import java.util.NoSuchElementException;
-
-import util.List;
+import util.Bindings;
+import util.Sink;
+import util.Symbol;
 import e.CPS.IntArithmetic.Operation;
 
 public class Interpreter {
   
   static void interpret (Program p, Environment env) {
-    evaluate(p.e, env, new Continuation() {
-      @Override
-      public Continuation cont(Value v) {
-        System.out.println(v);
-        return null;
-      }
-    });
+    interpret(p, env, Sink.SYSTEM_OUT);
+  }
+  
+  static void interpret (Program p, Environment env, Sink out) {
+    out.println(evaluate(p, env));
+  }
+  
+  // Every continuation returns what the one it calls returns, so the
+  // Halt that ends the program comes back out of evaluate with the value.
+  static Value evaluate (Program p, Environment env) {
+    Halt halt = (Halt) evaluate(resolve(p.e, env), env, new Halt());
+    return halt.v;
   }
   
   static Continuation apply (Closure c, Value argument, Continuation k) {
-    if (c instanceof CL1) {
-      CL1 cl1 = (CL1) c;
+    switch (c.tag) {
+      case Closure.CL1: {
+        CL1 cl1 = (CL1) c;
 
-      Environment newEnv = cl1.env.bind(cl1.lambdaDef.formalArgument, argument);
+        Environment newEnv = cl1.env.bind(cl1.lambdaDef.formalArgument, argument);
 
-      return evaluate(cl1.lambdaDef.body, newEnv, k);
+        return evaluate(cl1.lambdaDef.body, newEnv, k);
+      }
     }
     
     throw new Error();
   }
   
-  static Continuation evaluate (Expression e, final Environment env, final Continuation c) {
-    if (e instanceof IntConstant) {
-      IntConstant intE = (IntConstant) e;
+  // Constant folding: arithmetic and comparisons over constants, Ifs with
+  // constant guards and lambdas applied to constants are reduced once,
+  // before the program runs. Anything that could fail at run time is kept.
+  static Expression fold (Expression e) {
+    if (e instanceof IntConstant || e instanceof BoolConstant || e instanceof Variable) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+      Expression op1 = fold(arith.operand1);
+      Expression op2 = fold(arith.operand2);
+
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant) {
+        int i1 = ((IntConstant) op1).javaInt;
+        int i2 = ((IntConstant) op2).javaInt;
+        switch (arith.op) {
+          case PLUS:
+            return new IntConstant(i1 + i2);
+          case MINUS:
+            return new IntConstant(i1 - i2);
+          case MULT:
+            return new IntConstant(i1 * i2);
+          case DIV:
+            if (i2 != 0)
+              return new IntConstant(i1 / i2);
+            break;
+          default:
+            throw new Error();
+        }
+      }
+
+      return new IntArithmetic(arith.op, op1, op2);
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+      Expression op1 = fold(intComp.operand1);
+      Expression op2 = fold(intComp.operand2);
+
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant)
+        return new BoolConstant(((IntConstant) op1).javaInt == ((IntConstant) op2).javaInt);
+
+      return new IntComparison(op1, op2);
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+      Expression guard = fold(ifE.guard);
 
-      return c.cont(new IntValue(intE.javaInt));
-    } else if (e instanceof BoolConstant) {
-      BoolConstant boolE = (BoolConstant) e;
+      if (guard instanceof BoolConstant)
+        return fold(((BoolConstant) guard).javaBool ? ifE.t : ifE.f);
 
-      return c.cont(new BoolValue(boolE.javaBool));
+      return new If(guard, fold(ifE.t), fold(ifE.f));
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument, fold(lambdaDef.body));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+      Expression lambda = fold(lambdaApp.lambda);
+      Expression argument = fold(lambdaApp.argument);
+
+      // A constant argument has no effects to lose and no names to capture
+      if (lambda instanceof LambdaDef
+          && (argument instanceof IntConstant || argument instanceof BoolConstant)) {
+        LambdaDef lambdaDef = (LambdaDef) lambda;
+
+        return fold(substitute(lambdaDef.body, lambdaDef.formalArgument, argument));
+      }
+
+      return new LambdaApp(lambda, argument);
+    }
+
+    throw new Error();
+  }
+  
+  // Replaces the free occurrences of var in e with a constant
+  static Expression substitute (Expression e, Variable var, Expression constant) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
     } else if (e instanceof IntArithmetic) {
-      final IntArithmetic arith = (IntArithmetic) e;
+      IntArithmetic arith = (IntArithmetic) e;
 
-      return evaluate(arith.operand1, env, new Continuation() {
-        
-        @Override
-        public Continuation cont(Value v) {
-          final IntValue op1 = (IntValue) v;
-          return evaluate(arith.operand2, env, new Continuation() {
-
-            @Override
-            public Continuation cont(Value v) {
-              IntValue op2 = (IntValue) v;
-              Value result;
-              switch (arith.op) {
-                case PLUS:
-                  result = new IntValue(op1.javaInt + op2.javaInt);
-                  break;
-                case MINUS:
-                  result = new IntValue(op1.javaInt - op2.javaInt);
-                  break;
-                case MULT:
-                  result = new IntValue(op1.javaInt * op2.javaInt);
-                  break;
-                case DIV:
-                  result = new IntValue(op1.javaInt / op2.javaInt);
-                  break;
-                default:
-                  throw new Error();
-              }
-              
-              return c.cont(result);
-            }
-          });
-        }
-      });
-      
+      return new IntArithmetic(arith.op,
+          substitute(arith.operand1, var, constant),
+          substitute(arith.operand2, var, constant));
     } else if (e instanceof IntComparison) {
-      final IntComparison intComp = (IntComparison) e;
-      
-      return evaluate(intComp.operand1, env, new Continuation() {
-        
-        @Override
-        public Continuation cont(Value v) {
-          final IntValue op1 = (IntValue) v;
-          return evaluate(intComp.operand2, env, new Continuation() {
-
-            @Override
-            public Continuation cont(Value v) {
-              IntValue op2 = (IntValue) v;
-              return c.cont(new BoolValue(op1.javaInt == op2.javaInt));
-            }
-
-          });
-        }
+      IntComparison intComp = (IntComparison) e;
 
-      });
+      return new IntComparison(
+          substitute(intComp.operand1, var, constant),
+          substitute(intComp.operand2, var, constant));
+    } else if (e instanceof If) {
+      If ifE = (If) e;
 
-      
+      return new If(
+          substitute(ifE.guard, var, constant),
+          substitute(ifE.t, var, constant),
+          substitute(ifE.f, var, constant));
+    } else if (e instanceof Variable) {
+      Variable v = (Variable) e;
+
+      return v.symbol == var.symbol ? constant : v;
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      if (lambdaDef.formalArgument.symbol == var.symbol)
+        return e;
+      return new LambdaDef(lambdaDef.formalArgument,
+          substitute(lambdaDef.body, var, constant));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          substitute(lambdaApp.lambda, var, constant),
+          substitute(lambdaApp.argument, var, constant));
+    }
+
+    throw new Error();
+  }
+  
+  // Lexical addressing: every Variable bound in scope is replaced by its
+  // depth in the environment, so evaluation never compares names.
+  static Expression resolve (Expression e, Environment scope) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+
+      return new IntArithmetic(arith.op,
+          resolve(arith.operand1, scope),
+          resolve(arith.operand2, scope));
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+
+      return new IntComparison(
+          resolve(intComp.operand1, scope),
+          resolve(intComp.operand2, scope));
     } else if (e instanceof If) {
-      final If ifE = (If) e;
-      
-      return evaluate(ifE.guard, env, new Continuation() {
-        
-        @Override
-        public Continuation cont(Value v) {
-          BoolValue guard = (BoolValue) v;
-          if (guard.javaBool)
-            return evaluate(ifE.t, env, c);
-          else
-            return evaluate(ifE.f, env, c);
-        }
+      If ifE = (If) e;
 
-      });
-      
+      return new If(
+          resolve(ifE.guard, scope),
+          resolve(ifE.t, scope),
+          resolve(ifE.f, scope));
     } else if (e instanceof Variable) {
       Variable v = (Variable) e;
-      
-      return c.cont(env.lookup(v));
+      int depth = scope.depth(v);
+
+      // Unbound variables are left alone and fail when evaluated
+      return depth < 0 ? v : new LexicalVariable(v, depth);
     } else if (e instanceof LambdaDef) {
       LambdaDef lambdaDef = (LambdaDef) e;
-      
-      return c.cont(new LambdaValue(new CL1(lambdaDef, env)));
+
+      return new LambdaDef(lambdaDef.formalArgument,
+          resolve(lambdaDef.body, scope.bind(lambdaDef.formalArgument, null)));
     } else if (e instanceof LambdaApp) {
-      final LambdaApp lambdaApp = (LambdaApp) e;
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          resolve(lambdaApp.lambda, scope),
+          resolve(lambdaApp.argument, scope));
+    }
+
+    throw new Error();
+  }
+  
+  static Continuation evaluate (Expression e, final Environment env, final Continuation c) {
+    switch (e.tag) {
+      case Expression.INT_CONSTANT: {
+        IntConstant intE = (IntConstant) e;
 
-      return evaluate(lambdaApp.lambda, env, new Continuation() {
+        return c.cont(IntValue.valueOf(intE.javaInt));
+      }
+      case Expression.BOOL_CONSTANT: {
+        BoolConstant boolE = (BoolConstant) e;
+
+        return c.cont(BoolValue.valueOf(boolE.javaBool));
+      }
+      case Expression.INT_ARITHMETIC: {
+        final IntArithmetic arith = (IntArithmetic) e;
+
+        return evaluate(arith.operand1, env, new Continuation() {
         
-        @Override
-        public Continuation cont(Value v) {
-          final LambdaValue lambda = (LambdaValue) v;
-          return evaluate(lambdaApp.argument, env, new Continuation() {
+          @Override
+          public Continuation cont(Value v) {
+            final int op1 = ((IntValue) v).javaInt;
+            return evaluate(arith.operand2, env, new Continuation() {
+
+              @Override
+              public Continuation cont(Value v) {
+                IntValue op2 = (IntValue) v;
+                Value result;
+                switch (arith.op) {
+                  case PLUS:
+                    result = IntValue.valueOf(op1 + op2.javaInt);
+                    break;
+                  case MINUS:
+                    result = IntValue.valueOf(op1 - op2.javaInt);
+                    break;
+                  case MULT:
+                    result = IntValue.valueOf(op1 * op2.javaInt);
+                    break;
+                  case DIV:
+                    result = IntValue.valueOf(op1 / op2.javaInt);
+                    break;
+                  default:
+                    throw new Error();
+                }
+              
+                return c.cont(result);
+              }
+            });
+          }
+        });
+      }
+      case Expression.INT_COMPARISON: {
+        final IntComparison intComp = (IntComparison) e;
+      
+        return evaluate(intComp.operand1, env, new Continuation() {
+        
+          @Override
+          public Continuation cont(Value v) {
+            final int op1 = ((IntValue) v).javaInt;
+            return evaluate(intComp.operand2, env, new Continuation() {
+
+              @Override
+              public Continuation cont(Value v) {
+                IntValue op2 = (IntValue) v;
+                return c.cont(BoolValue.valueOf(op1 == op2.javaInt));
+              }
 
-            @Override
-            public Continuation cont(Value v) {
-              return apply(lambda.cl, v, c);
-            }
+            });
+          }
 
-          });
-        }
+        });
 
-      });
       
+      }
+      case Expression.IF: {
+        final If ifE = (If) e;
+      
+        return evaluate(ifE.guard, env, new Continuation() {
+        
+          @Override
+          public Continuation cont(Value v) {
+            BoolValue guard = (BoolValue) v;
+            if (guard.javaBool)
+              return evaluate(ifE.t, env, c);
+            else
+              return evaluate(ifE.f, env, c);
+          }
+
+        });
+      }
+      case Expression.LEXICAL_VARIABLE: {
+        LexicalVariable lv = (LexicalVariable) e;
+      
+        return c.cont(env.lookup(lv.depth));
+      }
+      case Expression.VARIABLE: {
+        Variable v = (Variable) e;
+      
+        return c.cont(env.lookup(v));
+      }
+      case Expression.LAMBDA_DEF: {
+        LambdaDef lambdaDef = (LambdaDef) e;
+      
+        return c.cont(new LambdaValue(new CL1(lambdaDef, env)));
+      }
+      case Expression.LAMBDA_APP: {
+        final LambdaApp lambdaApp = (LambdaApp) e;
+
+        return evaluate(lambdaApp.lambda, env, new Continuation() {
+        
+          @Override
+          public Continuation cont(Value v) {
+            final LambdaValue lambda = (LambdaValue) v;
+            return evaluate(lambdaApp.argument, env, new Continuation() {
+
+              @Override
+              public Continuation cont(Value v) {
+                return apply(lambda.cl, v, c);
+              }
+
+            });
+          }
+
+        });
+      }
     }
     
     throw new Error();
@@ -186,9 +366,27 @@ interface Continuation {
   Continuation cont(Value v);
 }
 
+// The outermost continuation, which keeps the program's value
+class Halt implements Continuation {
+  Value v;
+
+  @Override
+  public Continuation cont(Value v) {
+    this.v = v;
+    return this;
+  }
+}
+
 // Closures
 
 class Closure {
+  static final int CL1 = 0;
+
+  final int tag;
+
+  public Closure(int tag) {
+    this.tag = tag;
+  }
 }
 
 class CL1 extends Closure {
@@ -196,6 +394,7 @@ class CL1 extends Closure {
   final Environment env;
 
   public CL1(LambdaDef lambdaDef, Environment env) {
+    super(CL1);
     this.lambdaDef = lambdaDef;
     this.env = env;
   }
@@ -203,52 +402,54 @@ class CL1 extends Closure {
 
 // Environments
 
-class Bind {
-	final Variable var;
-	final Value	 val;
-
-	public Bind(Variable var, Value val) {
-		this.var = var;
-		this.val = val;
-	}
-}
-
 class Environment {
-  public static Environment EMPTY = new Environment(List.EMPTY);
-	private List binds;
+  public static final Environment EMPTY = new Environment(Bindings.<Value>empty());
+	private final Bindings<Value> binds;
 
-	private Environment(List binds) { this.binds = binds; }
+	private Environment(Bindings<Value> binds) { this.binds = binds; }
 	
 	public Environment bind(Variable va, Value vv) {
-	  return new Environment(binds.add(new Bind(va,vv)));
+	  return new Environment(binds.bind(va.symbol, vv));
 	}
 
 	public Value lookup(Variable v) {
-		return lookup(v, binds);
+		return binds.lookup(v.symbol);
 	}
 
-	public Value lookup(Variable v, List rest) {
-		if (rest == null)
-			throw new NoSuchElementException();
-
-		Bind b = (Bind) rest.el;
+	public Value lookup(int depth) {
+		return binds.get(depth);
+	}
 
-		if (v.name.equals(b.var.name))
-			return b.val;
-		else
-			return lookup(v, rest.rest);
+	public int depth(Variable v) {
+		return binds.depth(v.symbol);
 	}
 }
 
 // Expressions
 
 class Expression {
+  static final int INT_CONSTANT = 0;
+  static final int BOOL_CONSTANT = 1;
+  static final int INT_ARITHMETIC = 2;
+  static final int INT_COMPARISON = 3;
+  static final int IF = 4;
+  static final int VARIABLE = 5;
+  static final int LEXICAL_VARIABLE = 6;
+  static final int LAMBDA_DEF = 7;
+  static final int LAMBDA_APP = 8;
+
+  final int tag;
+
+  public Expression(int tag) {
+    this.tag = tag;
+  }
 }
 
 class IntConstant extends Expression {
   final int javaInt;
 
   public IntConstant(int javaInt) {
+    super(INT_CONSTANT);
     this.javaInt = javaInt;
   }
 }
@@ -257,6 +458,7 @@ class BoolConstant extends Expression {
   final boolean javaBool;
 
   public BoolConstant(boolean javaBool) {
+    super(BOOL_CONSTANT);
     this.javaBool = javaBool;
   }
 }
@@ -268,6 +470,7 @@ class IntArithmetic extends Expression {
   final Expression operand1, operand2;
   
   public IntArithmetic(Operation op, Expression operand1, Expression operand2) {
+    super(INT_ARITHMETIC);
     this.op = op;
     this.operand1 = operand1;
     this.operand2 = operand2;
@@ -278,6 +481,7 @@ class IntComparison extends Expression {
   final Expression operand1, operand2;
   
   public IntComparison(Expression operand1, Expression operand2) {
+    super(INT_COMPARISON);
     this.operand1 = operand1;
     this.operand2 = operand2;
   }
@@ -287,6 +491,7 @@ class If extends Expression {
   final Expression guard, t, f;
 
   public If(Expression guard, Expression t, Expression f) {
+    super(IF);
     this.guard = guard;
     this.t = t;
     this.f = f;
@@ -295,9 +500,23 @@ class If extends Expression {
 
 class Variable extends Expression {
   final String name;
+  final Symbol symbol;
 
   public Variable(String name) {
+    super(VARIABLE);
     this.name = name;
+    this.symbol = Symbol.intern(name);
+  }
+}
+
+class LexicalVariable extends Expression {
+  final Variable var;
+  final int depth;
+
+  public LexicalVariable(Variable var, int depth) {
+    super(LEXICAL_VARIABLE);
+    this.var = var;
+    this.depth = depth;
   }
 }
 
@@ -306,6 +525,7 @@ class LambdaDef extends Expression {
   final Expression body;
 
   public LambdaDef(Variable formalArgument, Expression body) {
+    super(LAMBDA_DEF);
     this.formalArgument = formalArgument;
     this.body = body;
   }
@@ -316,6 +536,7 @@ class LambdaApp extends Expression {
   final Expression argument;
 
   public LambdaApp(Expression lambda, Expression argument) {
+    super(LAMBDA_APP);
     this.lambda = lambda;
     this.argument = argument;
   }
@@ -327,12 +548,27 @@ class Value {
 }
 
 class IntValue extends Value {
+  static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+  static final IntValue[] CACHE = new IntValue[CACHE_HIGH - CACHE_LOW + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; i++)
+      CACHE[i] = new IntValue(CACHE_LOW + i);
+  }
+
   final int javaInt;
 
   public IntValue(int javaInt) {
     this.javaInt = javaInt;
   }
 
+  // Small values are shared; any other value is freshly allocated
+  static IntValue valueOf(int javaInt) {
+    if (javaInt >= CACHE_LOW && javaInt <= CACHE_HIGH)
+      return CACHE[javaInt - CACHE_LOW];
+    return new IntValue(javaInt);
+  }
+
   @Override
   public String toString() {
     return "" + this.javaInt;
@@ -340,12 +576,19 @@ class IntValue extends Value {
 }
 
 class BoolValue extends Value {
+  static final BoolValue TRUE = new BoolValue(true);
+  static final BoolValue FALSE = new BoolValue(false);
+
   final boolean javaBool;
 
   public BoolValue(boolean javaBool) {
     this.javaBool = javaBool;
   }
 
+  static BoolValue valueOf(boolean javaBool) {
+    return javaBool ? TRUE : FALSE;
+  }
+
   @Override
   public String toString() {
     return "" + this.javaBool;
@@ -363,10 +606,12 @@ class LambdaValue extends Value {
   }
 }
 
+// A program's expression is folded once, when the Program is built, so
+// evaluating it again does not fold it again
 class Program {
   final Expression e;
 
   public Program(Expression e) {
-    this.e = e;
+    this.e = Interpreter.fold(e);
   }
 }
\ No newline at end of file
@@ -1,125 +1,470 @@
 package f.defuncCPS;
 
-import java.util.NoSuchElementException;
+import java.util.ArrayList;
 
-import util.List;
+import util.Bindings;
+import util.Sink;
+import util.Symbol;
 import f.defuncCPS.IntArithmetic.Operation;
 
 public class Interpreter {
   
   static void interpret (Program p, Environment env) {
-    evaluate(p.e, env, new Cprint());
+    interpret(p, env, Sink.SYSTEM_OUT);
   }
   
-  static Continuation cont(Continuation c, Value v) {
-    if (c instanceof CArithInner) {
-      CArithInner k = (CArithInner) c;
-
-      IntValue op2 = (IntValue) v;
-      Value result;
-      switch (k.arith.op) {
-        case PLUS:
-          result = new IntValue(k.op1.javaInt + op2.javaInt);
-          break;
-        case MINUS:
-          result = new IntValue(k.op1.javaInt - op2.javaInt);
-          break;
-        case MULT:
-          result = new IntValue(k.op1.javaInt * op2.javaInt);
-          break;
-        case DIV:
-          result = new IntValue(k.op1.javaInt / op2.javaInt);
-          break;
-        default:
-          throw new Error();
+  static void interpret (Program p, Environment env, Sink out) {
+    interpret(p, env, false, out);
+  }
+  
+  static void interpret (Program p, Environment env, boolean flatClosures) {
+    interpret(p, env, flatClosures, Sink.SYSTEM_OUT);
+  }
+  
+  static void interpret (Program p, Environment env, boolean flatClosures, Sink out) {
+    out.println(evaluate(p, env, flatClosures));
+  }
+  
+  static Value evaluate (Program p, Environment env) {
+    return evaluate(p, env, false);
+  }
+  
+  static Value evaluate (Program p, Environment env, boolean flatClosures) {
+    return evaluate(p, env, flatClosures, false);
+  }
+  
+  static Value evaluate (Program p, Environment env, boolean flatClosures, boolean pooled) {
+    return execute(flatClosures ? convert(p.e, env, null) : resolve(p.e, env), env, pooled);
+  }
+  
+  // e must already be resolved or converted against env. With pooled,
+  // continuations and Steps are recycled through a ContinuationPool.
+  static Value execute (Expression e, Environment env, boolean pooled) {
+    ContinuationPool pool = new ContinuationPool(pooled);
+    return trampoline(evaluate(e, env, new CHalt(), pool), pool);
+  }
+  
+  // Applies c to argument to completion, for the Machine's calls of
+  // closures it did not make
+  static Value call (Closure c, Value argument) {
+    ContinuationPool pool = new ContinuationPool(false);
+    return trampoline(apply(c, argument, new CHalt(), pool), pool);
+  }
+  
+  // Trampoline: evaluate and apply only descend into sub-expressions, so
+  // the Java stack is bounded by the depth of the AST, and every value
+  // delivered to a continuation comes back here as a Step. The program's
+  // value is the one that reaches CHalt, the outermost continuation.
+  static Value trampoline (Step s, ContinuationPool pool) {
+    while (s.c.tag != Continuation.HALT)
+      s = cont(s.c, s.v, pool);
+    return s.v;
+  }
+  
+  // Every case reads what it needs out of c before handing c to the pool:
+  // c is dead from then on (see ContinuationPool).
+  static Step cont(Continuation c, Value v, ContinuationPool pool) {
+    switch (c.tag) {
+      case Continuation.ARITH_INNER: {
+        CArithInner k = (CArithInner) c;
+
+        IntValue op2 = (IntValue) v;
+        Value result;
+        switch (k.arith.op) {
+          case PLUS:
+            result = IntValue.valueOf(k.op1 + op2.javaInt);
+            break;
+          case MINUS:
+            result = IntValue.valueOf(k.op1 - op2.javaInt);
+            break;
+          case MULT:
+            result = IntValue.valueOf(k.op1 * op2.javaInt);
+            break;
+          case DIV:
+            result = IntValue.valueOf(k.op1 / op2.javaInt);
+            break;
+          default:
+            throw new Error();
+        }
+
+        Continuation next = k.c;
+        pool.free(k);
+        return pool.step(next, result);
       }
-
-      return cont(k.c, result);
-    } else if (c instanceof CArithOuter) {
-      CArithOuter k = (CArithOuter) c;
-
-      IntValue op1 = (IntValue) v;
-      return evaluate(k.arith.operand2, k.env, new CArithInner(k.arith, op1, k.c));
-    } else if (c instanceof CComparisonOuter) {
-      CComparisonOuter k = (CComparisonOuter) c;
-      IntValue op1 = (IntValue) v;
-
-      return evaluate(k.intComp.operand2, k.env, new CComparisonInner(op1, k.c));
-    } else if (c instanceof CComparisonInner) {
-      CComparisonInner k = (CComparisonInner) c;
-
-      IntValue op2 = (IntValue) v;
-      return cont(k.c, new BoolValue(k.op1.javaInt == op2.javaInt));
-    } else if (c instanceof CIf) {
-      CIf k = (CIf) c;
-      BoolValue guard = (BoolValue) v;
-      if (guard.javaBool)
-        return evaluate(k.ifE.t, k.env, k.c);
-      else
-        return evaluate(k.ifE.f, k.env, k.c);
-    } else if (c instanceof CLambdaInner) {
-      CLambdaInner k = (CLambdaInner) c;
-      return apply(k.lambda.cl, v, k.c);
-    } else if (c instanceof CLambdaOuter) {
-      CLambdaOuter k = (CLambdaOuter) c;
+      case Continuation.ARITH_OUTER: {
+        CArithOuter k = (CArithOuter) c;
+
+        int op1 = ((IntValue) v).javaInt;
+        IntArithmetic arith = k.arith;
+        Environment env = k.env;
+        Continuation next = k.c;
+        pool.free(k);
+        return evaluate(arith.operand2, env, pool.arithInner(arith, op1, next), pool);
+      }
+      case Continuation.COMPARISON_OUTER: {
+        CComparisonOuter k = (CComparisonOuter) c;
+        int op1 = ((IntValue) v).javaInt;
+
+        IntComparison intComp = k.intComp;
+        Environment env = k.env;
+        Continuation next = k.c;
+        pool.free(k);
+        return evaluate(intComp.operand2, env, pool.comparisonInner(op1, next), pool);
+      }
+      case Continuation.COMPARISON_INNER: {
+        CComparisonInner k = (CComparisonInner) c;
+
+        IntValue op2 = (IntValue) v;
+        boolean result = k.op1 == op2.javaInt;
+        Continuation next = k.c;
+        pool.free(k);
+        return pool.step(next, BoolValue.valueOf(result));
+      }
+      case Continuation.IF: {
+        CIf k = (CIf) c;
+        BoolValue guard = (BoolValue) v;
+        Expression branch = guard.javaBool ? k.ifE.t : k.ifE.f;
+        Environment env = k.env;
+        Continuation next = k.c;
+        pool.free(k);
+        return evaluate(branch, env, next, pool);
+      }
+      case Continuation.LAMBDA_INNER: {
+        CLambdaInner k = (CLambdaInner) c;
+        Closure cl = k.lambda.cl;
+        Continuation next = k.c;
+        pool.free(k);
+        return apply(cl, v, next, pool);
+      }
+      case Continuation.LAMBDA_OUTER: {
+        CLambdaOuter k = (CLambdaOuter) c;
         
-      LambdaValue lambda = (LambdaValue) v;
-      return evaluate(k.lambdaApp.argument, k.env, new CLambdaInner(lambda, k.c));
-    } else if (c instanceof Cprint) {
-      System.out.println(v);
-      return null;
+        LambdaValue lambda = (LambdaValue) v;
+        Expression argument = k.lambdaApp.argument;
+        Environment env = k.env;
+        Continuation next = k.c;
+        pool.free(k);
+        return evaluate(argument, env, pool.lambdaInner(lambda, next), pool);
+      }
     }
 
     throw new Error();
   }
   
-  static Continuation apply (Closure c, Value argument, Continuation k) {
-    if (c instanceof CL1) {
-      CL1 cl1 = (CL1) c;
+  static Step apply (Closure c, Value argument, Continuation k, ContinuationPool pool) {
+    switch (c.tag) {
+      case Closure.CL1: {
+        CL1 cl1 = (CL1) c;
+
+        Environment newEnv = cl1.env.bind(cl1.lambdaDef.formalArgument, argument);
+
+        return evaluate(cl1.lambdaDef.body, newEnv, k, pool);
+      }
+      case Closure.CL_FLAT: {
+        CLFlat flat = (CLFlat) c;
 
-      Environment newEnv = cl1.env.bind(cl1.lambdaDef.formalArgument, argument);
+        Environment newEnv = Environment.flat(flat.captured).bind(flat.lambdaDef.formalArgument, argument);
 
-      return evaluate(cl1.lambdaDef.body, newEnv, k);
+        return evaluate(flat.lambdaDef.body, newEnv, k, pool);
+      }
+      case Closure.CL_MACHINE:
+        // A closure the Machine made, passed to one of the initial
+        // environment's: the Machine runs its body on the Java stack
+        return pool.step(k, Machine.call((CLMachine) c, argument));
     }
     
     throw new Error();
   }
   
-  static Continuation evaluate (Expression e, final Environment env, final Continuation c) {
-    if (e instanceof IntConstant) {
-      IntConstant intE = (IntConstant) e;
+  // Constant folding: arithmetic and comparisons over constants, Ifs with
+  // constant guards and lambdas applied to constants are reduced once,
+  // before the program runs. Anything that could fail at run time is kept.
+  static Expression fold (Expression e) {
+    if (e instanceof IntConstant || e instanceof BoolConstant || e instanceof Variable) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+      Expression op1 = fold(arith.operand1);
+      Expression op2 = fold(arith.operand2);
+
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant) {
+        int i1 = ((IntConstant) op1).javaInt;
+        int i2 = ((IntConstant) op2).javaInt;
+        switch (arith.op) {
+          case PLUS:
+            return new IntConstant(i1 + i2);
+          case MINUS:
+            return new IntConstant(i1 - i2);
+          case MULT:
+            return new IntConstant(i1 * i2);
+          case DIV:
+            if (i2 != 0)
+              return new IntConstant(i1 / i2);
+            break;
+          default:
+            throw new Error();
+        }
+      }
 
-      return cont(c, new IntValue(intE.javaInt));
-    } else if (e instanceof BoolConstant) {
-      BoolConstant boolE = (BoolConstant) e;
+      return new IntArithmetic(arith.op, op1, op2);
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+      Expression op1 = fold(intComp.operand1);
+      Expression op2 = fold(intComp.operand2);
+
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant)
+        return new BoolConstant(((IntConstant) op1).javaInt == ((IntConstant) op2).javaInt);
+
+      return new IntComparison(op1, op2);
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+      Expression guard = fold(ifE.guard);
+
+      if (guard instanceof BoolConstant)
+        return fold(((BoolConstant) guard).javaBool ? ifE.t : ifE.f);
+
+      return new If(guard, fold(ifE.t), fold(ifE.f));
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument, fold(lambdaDef.body));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+      Expression lambda = fold(lambdaApp.lambda);
+      Expression argument = fold(lambdaApp.argument);
+
+      // A constant argument has no effects to lose and no names to capture
+      if (lambda instanceof LambdaDef
+          && (argument instanceof IntConstant || argument instanceof BoolConstant)) {
+        LambdaDef lambdaDef = (LambdaDef) lambda;
+
+        return fold(substitute(lambdaDef.body, lambdaDef.formalArgument, argument));
+      }
 
-      return cont(c, new BoolValue(boolE.javaBool));
+      return new LambdaApp(lambda, argument);
+    }
+
+    throw new Error();
+  }
+  
+  // Replaces the free occurrences of var in e with a constant
+  static Expression substitute (Expression e, Variable var, Expression constant) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
     } else if (e instanceof IntArithmetic) {
-      final IntArithmetic arith = (IntArithmetic) e;
+      IntArithmetic arith = (IntArithmetic) e;
 
-      return evaluate(arith.operand1, env, new CArithOuter(arith, c, env));
-        
+      return new IntArithmetic(arith.op,
+          substitute(arith.operand1, var, constant),
+          substitute(arith.operand2, var, constant));
     } else if (e instanceof IntComparison) {
       IntComparison intComp = (IntComparison) e;
-      
-      return evaluate(intComp.operand1, env, new CComparisonOuter(intComp, c, env));
+
+      return new IntComparison(
+          substitute(intComp.operand1, var, constant),
+          substitute(intComp.operand2, var, constant));
     } else if (e instanceof If) {
-      final If ifE = (If) e;
-      
-      return evaluate(ifE.guard, env, new CIf(ifE, c, env));
-      
+      If ifE = (If) e;
+
+      return new If(
+          substitute(ifE.guard, var, constant),
+          substitute(ifE.t, var, constant),
+          substitute(ifE.f, var, constant));
     } else if (e instanceof Variable) {
       Variable v = (Variable) e;
-      
-      return cont(c, env.lookup(v));
+
+      return v.symbol == var.symbol ? constant : v;
     } else if (e instanceof LambdaDef) {
       LambdaDef lambdaDef = (LambdaDef) e;
-      
-      return cont(c, new LambdaValue(new CL1(lambdaDef, env)));
+
+      if (lambdaDef.formalArgument.symbol == var.symbol)
+        return e;
+      return new LambdaDef(lambdaDef.formalArgument,
+          substitute(lambdaDef.body, var, constant));
     } else if (e instanceof LambdaApp) {
       LambdaApp lambdaApp = (LambdaApp) e;
 
-      return evaluate(lambdaApp.lambda, env, new CLambdaOuter(lambdaApp, c, env));
+      return new LambdaApp(
+          substitute(lambdaApp.lambda, var, constant),
+          substitute(lambdaApp.argument, var, constant));
+    }
+
+    throw new Error();
+  }
+  
+  // Lexical addressing: every Variable bound in scope is replaced by its
+  // depth in the environment, so evaluation never compares names.
+  static Expression resolve (Expression e, Environment scope) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+
+      return new IntArithmetic(arith.op,
+          resolve(arith.operand1, scope),
+          resolve(arith.operand2, scope));
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+
+      return new IntComparison(
+          resolve(intComp.operand1, scope),
+          resolve(intComp.operand2, scope));
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+
+      return new If(
+          resolve(ifE.guard, scope),
+          resolve(ifE.t, scope),
+          resolve(ifE.f, scope));
+    } else if (e instanceof Variable) {
+      Variable v = (Variable) e;
+      int depth = scope.depth(v);
+
+      // Unbound variables are left alone and fail when evaluated
+      return depth < 0 ? v : new LexicalVariable(v, depth);
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument,
+          resolve(lambdaDef.body, scope.bind(lambdaDef.formalArgument, null)));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          resolve(lambdaApp.lambda, scope),
+          resolve(lambdaApp.argument, scope));
+    }
+
+    throw new Error();
+  }
+  
+  // Closure conversion: like resolve, but every LambdaDef becomes a
+  // FlatLambdaDef whose closures copy only its free variables, so a closure
+  // neither retains nor walks the environment it was defined in.
+  static Expression convert (Expression e, Environment locals, ClosureScope scope) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+
+      return new IntArithmetic(arith.op,
+          convert(arith.operand1, locals, scope),
+          convert(arith.operand2, locals, scope));
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+
+      return new IntComparison(
+          convert(intComp.operand1, locals, scope),
+          convert(intComp.operand2, locals, scope));
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+
+      return new If(
+          convert(ifE.guard, locals, scope),
+          convert(ifE.t, locals, scope),
+          convert(ifE.f, locals, scope));
+    } else if (e instanceof Variable) {
+      return address((Variable) e, locals, scope);
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      ClosureScope inner = new ClosureScope(locals, scope);
+      Expression body = convert(lambdaDef.body,
+          Environment.EMPTY.bind(lambdaDef.formalArgument, null), inner);
+
+      return new FlatLambdaDef(lambdaDef.formalArgument, body,
+          inner.addresses.toArray(new Expression[inner.addresses.size()]));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          convert(lambdaApp.lambda, locals, scope),
+          convert(lambdaApp.argument, locals, scope));
+    }
+
+    throw new Error();
+  }
+  
+  // Where v lives when the innermost lambda has the given locals: a local
+  // frame, a captured slot, or nowhere (left as an unbound Variable).
+  static Expression address (Variable v, Environment locals, ClosureScope scope) {
+    int depth = locals.depth(v);
+    if (depth >= 0)
+      return new LexicalVariable(v, depth);
+    else if (scope == null)
+      return v;
+    else
+      return scope.capture(v);
+  }
+  
+  static Value load (Expression address, Environment env) {
+    if (address instanceof LexicalVariable)
+      return env.lookup(((LexicalVariable) address).depth);
+    else
+      return env.captured(((CapturedVariable) address).index);
+  }
+  
+  static Step evaluate (Expression e, final Environment env, final Continuation c, ContinuationPool pool) {
+    switch (e.tag) {
+      case Expression.INT_CONSTANT: {
+        IntConstant intE = (IntConstant) e;
+
+        return pool.step(c, IntValue.valueOf(intE.javaInt));
+      }
+      case Expression.BOOL_CONSTANT: {
+        BoolConstant boolE = (BoolConstant) e;
+
+        return pool.step(c, BoolValue.valueOf(boolE.javaBool));
+      }
+      case Expression.INT_ARITHMETIC: {
+        final IntArithmetic arith = (IntArithmetic) e;
+
+        return evaluate(arith.operand1, env, pool.arithOuter(arith, c, env), pool);
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+      
+        return evaluate(intComp.operand1, env, pool.comparisonOuter(intComp, c, env), pool);
+      }
+      case Expression.IF: {
+        final If ifE = (If) e;
+      
+        return evaluate(ifE.guard, env, pool.ifE(ifE, c, env), pool);
+      }
+      case Expression.LEXICAL_VARIABLE: {
+        LexicalVariable lv = (LexicalVariable) e;
+      
+        return pool.step(c, env.lookup(lv.depth));
+      }
+      case Expression.CAPTURED_VARIABLE: {
+        CapturedVariable cv = (CapturedVariable) e;
+      
+        return pool.step(c, env.captured(cv.index));
+      }
+      case Expression.VARIABLE: {
+        Variable v = (Variable) e;
+      
+        return pool.step(c, env.lookup(v));
+      }
+      case Expression.LAMBDA_DEF: {
+        LambdaDef lambdaDef = (LambdaDef) e;
+      
+        return pool.step(c, new LambdaValue(new CL1(lambdaDef, env)));
+      }
+      case Expression.FLAT_LAMBDA_DEF: {
+        FlatLambdaDef lambdaDef = (FlatLambdaDef) e;
+      
+        Value[] captured = new Value[lambdaDef.captures.length];
+        for (int i = 0; i < captured.length; i++)
+          captured[i] = load(lambdaDef.captures[i], env);
+      
+        return pool.step(c, new LambdaValue(new CLFlat(lambdaDef, captured)));
+      }
+      case Expression.LAMBDA_APP: {
+        LambdaApp lambdaApp = (LambdaApp) e;
+
+        return evaluate(lambdaApp.lambda, env, pool.lambdaOuter(lambdaApp, c, env), pool);
+      }
     }
     
     throw new Error();
@@ -137,6 +482,67 @@ public class Interpreter {
                       new Variable("y"))),
             new IntConstant(3))),
         Environment.EMPTY.bind(new Variable("y"), new IntValue(3)));
+
+    // Deep recursion through the Z combinator runs in constant Java stack:
+    // sum(n) = if n == 0 then 0 else n + sum(n - 1)
+    Expression zHalf =
+        new LambdaDef(
+            new Variable("x"),
+            new LambdaApp(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("v"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("x"),
+                            new Variable("x")),
+                        new Variable("v")))));
+    Program sum = new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaDef(
+                    new Variable("f"),
+                    new LambdaApp(zHalf, zHalf)),
+                new LambdaDef(
+                    new Variable("sum"),
+                    new LambdaDef(
+                        new Variable("n"),
+                        new If(
+                            new IntComparison(
+                                new Variable("n"),
+                                new IntConstant(0)),
+                            new IntConstant(0),
+                            new IntArithmetic(
+                                Operation.PLUS,
+                                new Variable("n"),
+                                new LambdaApp(
+                                    new Variable("sum"),
+                                    new IntArithmetic(
+                                        Operation.MINUS,
+                                        new Variable("n"),
+                                        new IntConstant(1)))))))),
+            new IntConstant(50000)));
+    interpret (sum, Environment.EMPTY);
+
+    // The same with flat closures and recycled continuations
+    System.out.println(evaluate(sum, Environment.EMPTY, true, true));
+
+    // Flat closures capture only their free variables
+    interpret (new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaDef(
+                    new Variable("x"),
+                    new LambdaDef(
+                        new Variable("y"),
+                        new IntArithmetic(
+                            Operation.MINUS,
+                            new Variable("x"),
+                            new Variable("y")))),
+                new IntConstant(10)),
+            new IntConstant(3))),
+        Environment.EMPTY.bind(new Variable("z"), new IntValue(0)),
+        true);
   }
 
 }
@@ -144,14 +550,29 @@ public class Interpreter {
 // Continuations
 
 class Continuation {
+  static final int ARITH_INNER = 0;
+  static final int ARITH_OUTER = 1;
+  static final int COMPARISON_INNER = 2;
+  static final int COMPARISON_OUTER = 3;
+  static final int IF = 4;
+  static final int LAMBDA_OUTER = 5;
+  static final int LAMBDA_INNER = 6;
+  static final int HALT = 7;
+
+  final int tag;
+
+  public Continuation(int tag) {
+    this.tag = tag;
+  }
 }
 
 class CArithInner extends Continuation {
-  final IntArithmetic arith;
-  final IntValue op1;
-  final Continuation c;
+  IntArithmetic arith;
+  int op1;
+  Continuation c;
 
-  public CArithInner(IntArithmetic arith, IntValue op1, Continuation c) {
+  public CArithInner(IntArithmetic arith, int op1, Continuation c) {
+    super(ARITH_INNER);
     this.arith = arith;
     this.op1 = op1;
     this.c = c;
@@ -159,11 +580,12 @@ class CArithInner extends Continuation {
 }
 
 class CArithOuter extends Continuation {
-  final IntArithmetic arith;
-  final Continuation c;
-  final Environment env;
+  IntArithmetic arith;
+  Continuation c;
+  Environment env;
 
   public CArithOuter(IntArithmetic arith, Continuation c, Environment env) {
+    super(ARITH_OUTER);
     this.arith = arith;
     this.c = c;
     this.env = env;
@@ -171,21 +593,23 @@ class CArithOuter extends Continuation {
 }
 
 class CComparisonInner extends Continuation {
-  final IntValue op1;
-  final Continuation c;
+  int op1;
+  Continuation c;
 
-  public CComparisonInner(IntValue op1, Continuation c) {
+  public CComparisonInner(int op1, Continuation c) {
+    super(COMPARISON_INNER);
     this.op1 = op1;
     this.c = c;
   }
 }
 
 class CComparisonOuter extends Continuation {
-  final IntComparison intComp;
-  final Continuation c;
-  final Environment env;
+  IntComparison intComp;
+  Continuation c;
+  Environment env;
 
   public CComparisonOuter(IntComparison intComp, Continuation c, Environment env) {
+    super(COMPARISON_OUTER);
     this.intComp = intComp;
     this.c = c;
     this.env = env;
@@ -193,11 +617,12 @@ class CComparisonOuter extends Continuation {
 }
 
 class CIf extends Continuation {
-  final If ifE;
-  final Environment env;
-  final Continuation c;
+  If ifE;
+  Environment env;
+  Continuation c;
 
   public CIf(If ifE, Continuation c, Environment env) {
+    super(IF);
     this.ifE = ifE;
     this.c = c;
     this.env = env;
@@ -205,11 +630,12 @@ class CIf extends Continuation {
 }
 
 class CLambdaOuter extends Continuation {
-  final LambdaApp lambdaApp;
-  final Continuation c;
-  final Environment env;
+  LambdaApp lambdaApp;
+  Continuation c;
+  Environment env;
   
   public CLambdaOuter(LambdaApp lambdaApp, Continuation c, Environment env) {
+    super(LAMBDA_OUTER);
     this.lambdaApp = lambdaApp;
     this.c = c;
     this.env = env;
@@ -217,21 +643,213 @@ class CLambdaOuter extends Continuation {
 }
 
 class CLambdaInner extends Continuation {
-  final LambdaValue lambda;
-  final Continuation c;
+  LambdaValue lambda;
+  Continuation c;
   
   public CLambdaInner(LambdaValue lambda, Continuation c) {
+    super(LAMBDA_INNER);
     this.lambda = lambda;
     this.c = c;
   }
 }
 
-class Cprint extends Continuation {
+class CHalt extends Continuation {
+  public CHalt() {
+    super(HALT);
+  }
+}
+
+// Trampoline
+
+class Step {
+  Continuation c;
+  Value v;
+
+  public Step(Continuation c, Value v) {
+    this.c = c;
+    this.v = v;
+  }
+}
+
+// Where evaluate and cont get their continuations and Steps. Unpooled, it
+// allocates every one. Pooled, it keeps a free list per kind of
+// continuation, linked through their c fields, and a single Step.
+//
+// Recycling is safe because this language cannot copy a continuation: no
+// expression turns one into a value (there is no escape, unlike g), so a
+// continuation is only ever referenced by the one continuation or Step
+// that will deliver a value to it, and cont is the only reader. Once cont
+// has read c's fields, nothing can reach c again and it is free. The
+// trampoline reads a Step's fields before calling cont, so the Step can be
+// refilled for the next one. Continuations therefore live and die in
+// stack order, and the free lists never grow past the deepest stack of
+// pending continuations.
+//
+// A pool belongs to one execute call, and so to one thread.
+class ContinuationPool {
+  final boolean pooled;
+  final Step step = new Step(null, null);
+
+  CArithInner arithInners;
+  CArithOuter arithOuters;
+  CComparisonInner comparisonInners;
+  CComparisonOuter comparisonOuters;
+  CIf ifs;
+  CLambdaOuter lambdaOuters;
+  CLambdaInner lambdaInners;
+
+  ContinuationPool(boolean pooled) {
+    this.pooled = pooled;
+  }
+
+  Step step(Continuation c, Value v) {
+    if (!pooled)
+      return new Step(c, v);
+    step.c = c;
+    step.v = v;
+    return step;
+  }
+
+  CArithInner arithInner(IntArithmetic arith, int op1, Continuation c) {
+    CArithInner k = arithInners;
+    if (k == null)
+      return new CArithInner(arith, op1, c);
+    arithInners = (CArithInner) k.c;
+    k.arith = arith;
+    k.op1 = op1;
+    k.c = c;
+    return k;
+  }
+
+  CArithOuter arithOuter(IntArithmetic arith, Continuation c, Environment env) {
+    CArithOuter k = arithOuters;
+    if (k == null)
+      return new CArithOuter(arith, c, env);
+    arithOuters = (CArithOuter) k.c;
+    k.arith = arith;
+    k.c = c;
+    k.env = env;
+    return k;
+  }
+
+  CComparisonInner comparisonInner(int op1, Continuation c) {
+    CComparisonInner k = comparisonInners;
+    if (k == null)
+      return new CComparisonInner(op1, c);
+    comparisonInners = (CComparisonInner) k.c;
+    k.op1 = op1;
+    k.c = c;
+    return k;
+  }
+
+  CComparisonOuter comparisonOuter(IntComparison intComp, Continuation c, Environment env) {
+    CComparisonOuter k = comparisonOuters;
+    if (k == null)
+      return new CComparisonOuter(intComp, c, env);
+    comparisonOuters = (CComparisonOuter) k.c;
+    k.intComp = intComp;
+    k.c = c;
+    k.env = env;
+    return k;
+  }
+
+  CIf ifE(If ifE, Continuation c, Environment env) {
+    CIf k = ifs;
+    if (k == null)
+      return new CIf(ifE, c, env);
+    ifs = (CIf) k.c;
+    k.ifE = ifE;
+    k.c = c;
+    k.env = env;
+    return k;
+  }
+
+  CLambdaOuter lambdaOuter(LambdaApp lambdaApp, Continuation c, Environment env) {
+    CLambdaOuter k = lambdaOuters;
+    if (k == null)
+      return new CLambdaOuter(lambdaApp, c, env);
+    lambdaOuters = (CLambdaOuter) k.c;
+    k.lambdaApp = lambdaApp;
+    k.c = c;
+    k.env = env;
+    return k;
+  }
+
+  CLambdaInner lambdaInner(LambdaValue lambda, Continuation c) {
+    CLambdaInner k = lambdaInners;
+    if (k == null)
+      return new CLambdaInner(lambda, c);
+    lambdaInners = (CLambdaInner) k.c;
+    k.lambda = lambda;
+    k.c = c;
+    return k;
+  }
+
+  // Freed continuations keep their other fields until they are reused;
+  // the pool dies with its execute call, so nothing is retained for long
+
+  void free(CArithInner k) {
+    if (pooled) {
+      k.c = arithInners;
+      arithInners = k;
+    }
+  }
+
+  void free(CArithOuter k) {
+    if (pooled) {
+      k.c = arithOuters;
+      arithOuters = k;
+    }
+  }
+
+  void free(CComparisonInner k) {
+    if (pooled) {
+      k.c = comparisonInners;
+      comparisonInners = k;
+    }
+  }
+
+  void free(CComparisonOuter k) {
+    if (pooled) {
+      k.c = comparisonOuters;
+      comparisonOuters = k;
+    }
+  }
+
+  void free(CIf k) {
+    if (pooled) {
+      k.c = ifs;
+      ifs = k;
+    }
+  }
+
+  void free(CLambdaOuter k) {
+    if (pooled) {
+      k.c = lambdaOuters;
+      lambdaOuters = k;
+    }
+  }
+
+  void free(CLambdaInner k) {
+    if (pooled) {
+      k.c = lambdaInners;
+      lambdaInners = k;
+    }
+  }
 }
 
 // Closures
 
 class Closure {
+  static final int CL1 = 0;
+  static final int CL_FLAT = 1;
+  static final int CL_MACHINE = 2;
+
+  final int tag;
+
+  public Closure(int tag) {
+    this.tag = tag;
+  }
 }
 
 class CL1 extends Closure {
@@ -239,59 +857,116 @@ class CL1 extends Closure {
   final Environment env;
 
   public CL1(LambdaDef lambdaDef, Environment env) {
+    super(CL1);
     this.lambdaDef = lambdaDef;
     this.env = env;
   }
 }
 
-// Environments
-
-class Bind {
-	final Variable var;
-	final Value	 val;
+class CLFlat extends Closure {
+  final FlatLambdaDef lambdaDef;
+  final Value[] captured;
 
-	public Bind(Variable var, Value val) {
-		this.var = var;
-		this.val = val;
-	}
+  public CLFlat(FlatLambdaDef lambdaDef, Value[] captured) {
+    super(CL_FLAT);
+    this.lambdaDef = lambdaDef;
+    this.captured = captured;
+  }
 }
 
+// Environments
+
 class Environment {
-  public static Environment EMPTY = new Environment(List.EMPTY);
-	private List binds;
+  public static final Environment EMPTY = new Environment(Bindings.<Value>empty(), new Value[0]);
+	private final Bindings<Value> binds;
+	private final Value[] captured;
+
+	private Environment(Bindings<Value> binds, Value[] captured) {
+		this.binds = binds;
+		this.captured = captured;
+	}
 
-	private Environment(List binds) { this.binds = binds; }
+	// The environment a flat closure's body starts from
+	public static Environment flat(Value[] captured) {
+		return new Environment(Bindings.<Value>empty(), captured);
+	}
 	
 	public Environment bind(Variable va, Value vv) {
-	  return new Environment(binds.add(new Bind(va,vv)));
+	  return new Environment(binds.bind(va.symbol, vv), captured);
 	}
 
-	public Value lookup(Variable v) {
-		return lookup(v, binds);
+	public Value captured(int index) {
+		return captured[index];
 	}
 
-	public Value lookup(Variable v, List rest) {
-		if (rest == null)
-			throw new NoSuchElementException();
+	public Value lookup(Variable v) {
+		return binds.lookup(v.symbol);
+	}
 
-		Bind b = (Bind) rest.el;
+	public Value lookup(int depth) {
+		return binds.get(depth);
+	}
 
-		if (v.name.equals(b.var.name))
-			return b.val;
-		else
-			return lookup(v, rest.rest);
+	public int depth(Variable v) {
+		return binds.depth(v.symbol);
 	}
 }
 
+// Free variables captured by the LambdaDef being converted, with their
+// addresses in the scope enclosing it
+class ClosureScope {
+  final Environment outerLocals;
+  final ClosureScope outer;
+  final ArrayList<Variable> vars = new ArrayList<>();
+  final ArrayList<Expression> addresses = new ArrayList<>();
+
+  public ClosureScope(Environment outerLocals, ClosureScope outer) {
+    this.outerLocals = outerLocals;
+    this.outer = outer;
+  }
+
+  Expression capture(Variable v) {
+    for (int i = 0; i < vars.size(); i++)
+      if (v.symbol == vars.get(i).symbol)
+        return new CapturedVariable(v, i);
+
+    Expression outerAddress = Interpreter.address(v, outerLocals, outer);
+    if (outerAddress instanceof Variable)
+      return v;
+
+    vars.add(v);
+    addresses.add(outerAddress);
+    return new CapturedVariable(v, vars.size() - 1);
+  }
+}
+
 // Expressions
 
 class Expression {
+  static final int INT_CONSTANT = 0;
+  static final int BOOL_CONSTANT = 1;
+  static final int INT_ARITHMETIC = 2;
+  static final int INT_COMPARISON = 3;
+  static final int IF = 4;
+  static final int VARIABLE = 5;
+  static final int LEXICAL_VARIABLE = 6;
+  static final int CAPTURED_VARIABLE = 7;
+  static final int LAMBDA_DEF = 8;
+  static final int FLAT_LAMBDA_DEF = 9;
+  static final int LAMBDA_APP = 10;
+
+  final int tag;
+
+  public Expression(int tag) {
+    this.tag = tag;
+  }
 }
 
 class IntConstant extends Expression {
   final int javaInt;
 
   public IntConstant(int javaInt) {
+    super(INT_CONSTANT);
     this.javaInt = javaInt;
   }
 }
@@ -300,6 +975,7 @@ class BoolConstant extends Expression {
   final boolean javaBool;
 
   public BoolConstant(boolean javaBool) {
+    super(BOOL_CONSTANT);
     this.javaBool = javaBool;
   }
 }
@@ -311,6 +987,7 @@ class IntArithmetic extends Expression {
   final Expression operand1, operand2;
   
   public IntArithmetic(Operation op, Expression operand1, Expression operand2) {
+    super(INT_ARITHMETIC);
     this.op = op;
     this.operand1 = operand1;
     this.operand2 = operand2;
@@ -321,6 +998,7 @@ class IntComparison extends Expression {
   final Expression operand1, operand2;
   
   public IntComparison(Expression operand1, Expression operand2) {
+    super(INT_COMPARISON);
     this.operand1 = operand1;
     this.operand2 = operand2;
   }
@@ -330,6 +1008,7 @@ class If extends Expression {
   final Expression guard, t, f;
 
   public If(Expression guard, Expression t, Expression f) {
+    super(IF);
     this.guard = guard;
     this.t = t;
     this.f = f;
@@ -338,9 +1017,34 @@ class If extends Expression {
 
 class Variable extends Expression {
   final String name;
+  final Symbol symbol;
 
   public Variable(String name) {
+    super(VARIABLE);
     this.name = name;
+    this.symbol = Symbol.intern(name);
+  }
+}
+
+class LexicalVariable extends Expression {
+  final Variable var;
+  final int depth;
+
+  public LexicalVariable(Variable var, int depth) {
+    super(LEXICAL_VARIABLE);
+    this.var = var;
+    this.depth = depth;
+  }
+}
+
+class CapturedVariable extends Expression {
+  final Variable var;
+  final int index;
+
+  public CapturedVariable(Variable var, int index) {
+    super(CAPTURED_VARIABLE);
+    this.var = var;
+    this.index = index;
   }
 }
 
@@ -349,8 +1053,22 @@ class LambdaDef extends Expression {
   final Expression body;
 
   public LambdaDef(Variable formalArgument, Expression body) {
+    super(LAMBDA_DEF);
+    this.formalArgument = formalArgument;
+    this.body = body;
+  }
+}
+
+class FlatLambdaDef extends Expression {
+  final Variable formalArgument;
+  final Expression body;
+  final Expression[] captures;
+
+  public FlatLambdaDef(Variable formalArgument, Expression body, Expression[] captures) {
+    super(FLAT_LAMBDA_DEF);
     this.formalArgument = formalArgument;
     this.body = body;
+    this.captures = captures;
   }
 }
 
@@ -359,6 +1077,7 @@ class LambdaApp extends Expression {
   final Expression argument;
 
   public LambdaApp(Expression lambda, Expression argument) {
+    super(LAMBDA_APP);
     this.lambda = lambda;
     this.argument = argument;
   }
@@ -370,12 +1089,27 @@ class Value {
 }
 
 class IntValue extends Value {
+  static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+  static final IntValue[] CACHE = new IntValue[CACHE_HIGH - CACHE_LOW + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; i++)
+      CACHE[i] = new IntValue(CACHE_LOW + i);
+  }
+
   final int javaInt;
 
   public IntValue(int javaInt) {
     this.javaInt = javaInt;
   }
 
+  // Small values are shared; any other value is freshly allocated
+  static IntValue valueOf(int javaInt) {
+    if (javaInt >= CACHE_LOW && javaInt <= CACHE_HIGH)
+      return CACHE[javaInt - CACHE_LOW];
+    return new IntValue(javaInt);
+  }
+
   @Override
   public String toString() {
     return "" + this.javaInt;
@@ -383,12 +1117,19 @@ class IntValue extends Value {
 }
 
 class BoolValue extends Value {
+  static final BoolValue TRUE = new BoolValue(true);
+  static final BoolValue FALSE = new BoolValue(false);
+
   final boolean javaBool;
 
   public BoolValue(boolean javaBool) {
     this.javaBool = javaBool;
   }
 
+  static BoolValue valueOf(boolean javaBool) {
+    return javaBool ? TRUE : FALSE;
+  }
+
   @Override
   public String toString() {
     return "" + this.javaBool;
@@ -406,10 +1147,12 @@ class LambdaValue extends Value {
   }
 }
 
+// A program's expression is folded once, when the Program is built, so
+// evaluating it again does not fold it again
 class Program {
   final Expression e;
 
   public Program(Expression e) {
-    this.e = e;
+    this.e = Interpreter.fold(e);
   }
 }
\ No newline at end of file
@@ -0,0 +1,450 @@
+package f.defuncCPS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import f.defuncCPS.IntArithmetic.Operation;
+
+// The defunctionalized continuations of the Interpreter, laid out as a stack
+// machine: a program is compiled to a flat int[] of opcodes and inline
+// operands, and run by a single loop over an explicit value stack (the
+// operands CArithInner and friends would hold) and control stack (the
+// CLambdaInner frames waiting for a call to return). No Expression or
+// Continuation objects are touched while the program runs.
+//
+// Closures are flat (see Interpreter.convert), so a lambda body only ever
+// sees its argument and its captured values. Calls in tail position replace
+// the current frame instead of pushing a new one. Closures bound in the
+// initial environment are applied by the Interpreter, which in turn hands
+// CLMachine closures back to the machine.
+public class Machine {
+
+  // Opcodes, followed by their operands
+  static final int CONST = 0;          // constant index
+  static final int ARG = 1;
+  static final int CAPTURED = 2;       // captured index
+  static final int GLOBAL = 3;         // depth in the initial environment
+  static final int UNBOUND = 4;        // variable index
+  static final int ADD = 5;
+  static final int SUB = 6;
+  static final int MUL = 7;
+  static final int DIV = 8;
+  static final int EQ = 9;
+  static final int JUMP_IF_FALSE = 10; // target
+  static final int JUMP = 11;          // target
+  static final int CLOSURE = 12;       // entry, number of captured values
+  static final int CALL = 13;
+  static final int TAIL_CALL = 14;
+  static final int RETURN = 15;
+  static final int HALT = 16;
+
+  static Bytecode compile (Program p, Environment env) {
+    Assembler a = new Assembler();
+
+    a.compile(Interpreter.convert(p.e, env, null), true, false);
+    a.emit(HALT);
+    a.compileBodies();
+
+    return a.bytecode();
+  }
+
+  static Value run (Bytecode b, Environment env) {
+    return run(b, env, 0, null, null);
+  }
+
+  // Runs cl's body until it returns. Inside a body every variable is an
+  // argument or captured, so no environment is needed.
+  static Value call (CLMachine cl, Value argument) {
+    return run(cl.bytecode, Environment.EMPTY, cl.entry, argument, cl.captured);
+  }
+
+  // Entered at pc with no pending calls: a RETURN with none to pop ends the
+  // run as HALT does
+  static Value run (Bytecode b, Environment env, int pc, Value arg, Value[] captured) {
+    int[] code = b.code;
+    Value[] constants = b.constants;
+    Variable[] variables = b.variables;
+
+    Value[] stack = new Value[64];
+    int sp = 0;
+
+    // One return address, argument and captured array per pending call
+    int[] returnPcs = new int[64];
+    Value[] returnArgs = new Value[64];
+    Value[][] returnCaptured = new Value[64][];
+    int fp = 0;
+
+    for (;;) {
+      // No instruction grows the value stack by more than one
+      if (sp == stack.length)
+        stack = Arrays.copyOf(stack, 2 * sp);
+
+      switch (code[pc++]) {
+        case CONST:
+          stack[sp++] = constants[code[pc++]];
+          break;
+        case ARG:
+          stack[sp++] = arg;
+          break;
+        case CAPTURED:
+          stack[sp++] = captured[code[pc++]];
+          break;
+        case GLOBAL:
+          stack[sp++] = env.lookup(code[pc++]);
+          break;
+        case UNBOUND:
+          stack[sp++] = env.lookup(variables[code[pc++]]);
+          break;
+        case ADD: {
+          int op2 = ((IntValue) stack[--sp]).javaInt;
+          int op1 = ((IntValue) stack[sp - 1]).javaInt;
+          stack[sp - 1] = IntValue.valueOf(op1 + op2);
+          break;
+        }
+        case SUB: {
+          int op2 = ((IntValue) stack[--sp]).javaInt;
+          int op1 = ((IntValue) stack[sp - 1]).javaInt;
+          stack[sp - 1] = IntValue.valueOf(op1 - op2);
+          break;
+        }
+        case MUL: {
+          int op2 = ((IntValue) stack[--sp]).javaInt;
+          int op1 = ((IntValue) stack[sp - 1]).javaInt;
+          stack[sp - 1] = IntValue.valueOf(op1 * op2);
+          break;
+        }
+        case DIV: {
+          int op2 = ((IntValue) stack[--sp]).javaInt;
+          int op1 = ((IntValue) stack[sp - 1]).javaInt;
+          stack[sp - 1] = IntValue.valueOf(op1 / op2);
+          break;
+        }
+        case EQ: {
+          int op2 = ((IntValue) stack[--sp]).javaInt;
+          int op1 = ((IntValue) stack[sp - 1]).javaInt;
+          stack[sp - 1] = BoolValue.valueOf(op1 == op2);
+          break;
+        }
+        case JUMP_IF_FALSE: {
+          int target = code[pc++];
+          if (!((BoolValue) stack[--sp]).javaBool)
+            pc = target;
+          break;
+        }
+        case JUMP:
+          pc = code[pc];
+          break;
+        case CLOSURE: {
+          int entry = code[pc++];
+          Value[] values = new Value[code[pc++]];
+          sp -= values.length;
+          System.arraycopy(stack, sp, values, 0, values.length);
+          stack[sp++] = new LambdaValue(new CLMachine(b, entry, values));
+          break;
+        }
+        case CALL:
+        case TAIL_CALL: {
+          Value argument = stack[--sp];
+          Closure c = ((LambdaValue) stack[--sp]).cl;
+
+          // Code in tail position is always followed by the body's RETURN,
+          // so a tail call the Interpreter makes can return like any other
+          if (c.tag != Closure.CL_MACHINE) {
+            stack[sp++] = Interpreter.call(c, argument);
+            break;
+          }
+
+          if (code[pc - 1] == CALL) {
+            if (fp == returnPcs.length) {
+              returnPcs = Arrays.copyOf(returnPcs, 2 * fp);
+              returnArgs = Arrays.copyOf(returnArgs, 2 * fp);
+              returnCaptured = Arrays.copyOf(returnCaptured, 2 * fp);
+            }
+            returnPcs[fp] = pc;
+            returnArgs[fp] = arg;
+            returnCaptured[fp] = captured;
+            fp++;
+          }
+
+          CLMachine cl = (CLMachine) c;
+          pc = cl.entry;
+          arg = argument;
+          captured = cl.captured;
+          break;
+        }
+        case RETURN:
+          if (fp == 0)
+            return stack[--sp];
+          fp--;
+          pc = returnPcs[fp];
+          arg = returnArgs[fp];
+          captured = returnCaptured[fp];
+          returnArgs[fp] = null;
+          returnCaptured[fp] = null;
+          break;
+        case HALT:
+          return stack[--sp];
+        default:
+          throw new Error();
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    // Simple lambda definition and application
+    Environment env = Environment.EMPTY.bind(new Variable("y"), new IntValue(3));
+    System.out.println(run(compile(new Program(
+        new LambdaApp(
+            new LambdaDef(
+                new Variable("x"),
+                new IntArithmetic(
+                    Operation.PLUS,
+                      new Variable("x"),
+                      new Variable("y"))),
+            new IntConstant(3))),
+        env), env));
+
+    // Deep recursion only grows the machine's own stacks:
+    // sum(n) = if n == 0 then 0 else n + sum(n - 1)
+    Expression zHalf =
+        new LambdaDef(
+            new Variable("x"),
+            new LambdaApp(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("v"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("x"),
+                            new Variable("x")),
+                        new Variable("v")))));
+    System.out.println(run(compile(new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaDef(
+                    new Variable("f"),
+                    new LambdaApp(zHalf, zHalf)),
+                new LambdaDef(
+                    new Variable("sum"),
+                    new LambdaDef(
+                        new Variable("n"),
+                        new If(
+                            new IntComparison(
+                                new Variable("n"),
+                                new IntConstant(0)),
+                            new IntConstant(0),
+                            new IntArithmetic(
+                                Operation.PLUS,
+                                new Variable("n"),
+                                new LambdaApp(
+                                    new Variable("sum"),
+                                    new IntArithmetic(
+                                        Operation.MINUS,
+                                        new Variable("n"),
+                                        new IntConstant(1)))))))),
+            new IntConstant(50000))),
+        Environment.EMPTY), Environment.EMPTY));
+
+    // Closures from the initial environment run on the Interpreter, and
+    // call back into the machine: twice (\x. x + y) 1, y = 3, is 7
+    Value twice = Interpreter.evaluate(new Program(
+        new LambdaDef(
+            new Variable("f"),
+            new LambdaDef(
+                new Variable("a"),
+                new LambdaApp(
+                    new Variable("f"),
+                    new LambdaApp(
+                        new Variable("f"),
+                        new Variable("a")))))),
+        Environment.EMPTY);
+    Environment withTwice = env.bind(new Variable("twice"), twice);
+    System.out.println(run(compile(new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new Variable("twice"),
+                new LambdaDef(
+                    new Variable("x"),
+                    new IntArithmetic(
+                        Operation.PLUS,
+                        new Variable("x"),
+                        new Variable("y")))),
+            new IntConstant(1))),
+        withTwice), withTwice));
+  }
+
+}
+
+class Bytecode {
+  final int[] code;
+  final Value[] constants;
+  final Variable[] variables;
+
+  public Bytecode(int[] code, Value[] constants, Variable[] variables) {
+    this.code = code;
+    this.constants = constants;
+    this.variables = variables;
+  }
+}
+
+// Lambda bodies are laid out after the top-level code, each followed by a
+// RETURN, in the order their CLOSURE instructions were emitted
+class Assembler {
+  int[] code = new int[64];
+  int size = 0;
+  final ArrayList<Value> constants = new ArrayList<>();
+  final ArrayList<Variable> variables = new ArrayList<>();
+  final ArrayList<FlatLambdaDef> bodies = new ArrayList<>();
+  final ArrayList<Integer> entryOperands = new ArrayList<>();
+
+  void emit(int word) {
+    if (size == code.length)
+      code = Arrays.copyOf(code, 2 * size);
+    code[size++] = word;
+  }
+
+  // Expressions at the top level see the initial environment; inside a
+  // lambda body the only local is the argument
+  void compile(Expression e, boolean topLevel, boolean tail) {
+    switch (e.tag) {
+      case Expression.INT_CONSTANT: {
+        IntConstant intE = (IntConstant) e;
+
+        emit(Machine.CONST);
+        emit(constants.size());
+        constants.add(IntValue.valueOf(intE.javaInt));
+        return;
+      }
+      case Expression.BOOL_CONSTANT: {
+        BoolConstant boolE = (BoolConstant) e;
+
+        emit(Machine.CONST);
+        emit(constants.size());
+        constants.add(BoolValue.valueOf(boolE.javaBool));
+        return;
+      }
+      case Expression.INT_ARITHMETIC: {
+        IntArithmetic arith = (IntArithmetic) e;
+
+        compile(arith.operand1, topLevel, false);
+        compile(arith.operand2, topLevel, false);
+        switch (arith.op) {
+          case PLUS:
+            emit(Machine.ADD);
+            return;
+          case MINUS:
+            emit(Machine.SUB);
+            return;
+          case MULT:
+            emit(Machine.MUL);
+            return;
+          case DIV:
+            emit(Machine.DIV);
+            return;
+          default:
+            throw new Error();
+        }
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+
+        compile(intComp.operand1, topLevel, false);
+        compile(intComp.operand2, topLevel, false);
+        emit(Machine.EQ);
+        return;
+      }
+      case Expression.IF: {
+        If ifE = (If) e;
+
+        compile(ifE.guard, topLevel, false);
+        emit(Machine.JUMP_IF_FALSE);
+        int elseOperand = size;
+        emit(0);
+        compile(ifE.t, topLevel, tail);
+        emit(Machine.JUMP);
+        int endOperand = size;
+        emit(0);
+        code[elseOperand] = size;
+        compile(ifE.f, topLevel, tail);
+        code[endOperand] = size;
+        return;
+      }
+      case Expression.LEXICAL_VARIABLE: {
+        LexicalVariable lv = (LexicalVariable) e;
+
+        if (topLevel) {
+          emit(Machine.GLOBAL);
+          emit(lv.depth);
+        } else {
+          emit(Machine.ARG);
+        }
+        return;
+      }
+      case Expression.CAPTURED_VARIABLE: {
+        CapturedVariable cv = (CapturedVariable) e;
+
+        emit(Machine.CAPTURED);
+        emit(cv.index);
+        return;
+      }
+      case Expression.VARIABLE: {
+        emit(Machine.UNBOUND);
+        emit(variables.size());
+        variables.add((Variable) e);
+        return;
+      }
+      case Expression.FLAT_LAMBDA_DEF: {
+        FlatLambdaDef lambdaDef = (FlatLambdaDef) e;
+
+        for (Expression capture : lambdaDef.captures)
+          compile(capture, topLevel, false);
+        emit(Machine.CLOSURE);
+        entryOperands.add(size);
+        bodies.add(lambdaDef);
+        emit(0);
+        emit(lambdaDef.captures.length);
+        return;
+      }
+      case Expression.LAMBDA_APP: {
+        LambdaApp lambdaApp = (LambdaApp) e;
+
+        compile(lambdaApp.lambda, topLevel, false);
+        compile(lambdaApp.argument, topLevel, false);
+        emit(tail ? Machine.TAIL_CALL : Machine.CALL);
+        return;
+      }
+    }
+
+    // LambdaDef does not survive closure conversion
+    throw new Error();
+  }
+
+  // Bodies may contain lambdas of their own, which are appended as we go
+  void compileBodies() {
+    for (int i = 0; i < bodies.size(); i++) {
+      code[entryOperands.get(i)] = size;
+      compile(bodies.get(i).body, false, true);
+      emit(Machine.RETURN);
+    }
+  }
+
+  Bytecode bytecode() {
+    return new Bytecode(
+        Arrays.copyOf(code, size),
+        constants.toArray(new Value[constants.size()]),
+        variables.toArray(new Variable[variables.size()]));
+  }
+}
+
+class CLMachine extends Closure {
+  final Bytecode bytecode;
+  final int entry;
+  final Value[] captured;
+
+  public CLMachine(Bytecode bytecode, int entry, Value[] captured) {
+    super(CL_MACHINE);
+    this.bytecode = bytecode;
+    this.entry = entry;
+    this.captured = captured;
+  }
+}
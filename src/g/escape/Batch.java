@@ -0,0 +1,92 @@
+package g.escape;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import g.escape.IntArithmetic.Operation;
+
+// Runs many programs at once on an ExecutorService and collects their
+// values instead of printing them. Programs share nothing mutable:
+// expressions and environments are immutable, and so are values, except
+// for the environment of a LetRec's CL1, which the thread evaluating the
+// LetRec sets before the closure is reachable from anything else. The
+// only global table (util.Symbol's) is concurrent, so the tasks need no
+// locking.
+public class Batch {
+  final ExecutorService executor;
+  final Environment env;
+  final boolean flatClosures;
+
+  public Batch(ExecutorService executor, Environment env, boolean flatClosures) {
+    this.executor = executor;
+    this.env = env;
+    this.flatClosures = flatClosures;
+  }
+
+  // The values of programs, in order. Every program is submitted before
+  // any is waited for; if some fail, the first failure in order is thrown.
+  ArrayList<Value> run (Iterable<Program> programs) throws InterruptedException, ExecutionException {
+    ArrayList<Future<Value>> futures = new ArrayList<>();
+    for (final Program p : programs) {
+      futures.add(executor.submit(new Callable<Value>() {
+        @Override
+        public Value call() {
+          return Interpreter.evaluate(p, env, flatClosures);
+        }
+      }));
+    }
+
+    ArrayList<Value> values = new ArrayList<>(futures.size());
+    for (Future<Value> future : futures)
+      values.add(future.get());
+    return values;
+  }
+
+  // One platform thread per core
+  static ExecutorService pool () {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  // One virtual thread per program on JDK 21 and later. Earlier JDKs have
+  // no virtual threads, and get pool() instead.
+  static ExecutorService virtualThreads () {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return pool();
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException, ExecutionException {
+    // x * k for k = 0 .. 9, and one escape, across the pool
+    ArrayList<Program> programs = new ArrayList<>();
+    for (int k = 0; k < 10; k++)
+      programs.add(new Program(
+          new IntArithmetic(
+              Operation.MULT,
+              new Variable("x"),
+              new IntConstant(k))));
+    programs.add(new Program(
+        new Escape(
+            new Variable("k"),
+            new IntArithmetic(
+                Operation.PLUS,
+                new IntConstant(1),
+                new LambdaApp(
+                    new Variable("k"),
+                    new Variable("x"))))));
+
+    ExecutorService executor = pool();
+    try {
+      Environment env = Environment.EMPTY.bind(new Variable("x"), new IntValue(3));
+      System.out.println(new Batch(executor, env, true).run(programs));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+}
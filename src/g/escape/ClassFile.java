@@ -0,0 +1,467 @@
+package g.escape;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Writes the class files the Compiler generates, in version 49 (Java 5),
+// the last version without stack map frames: the JVM verifies it by type
+// inference, so a method needs no frames however its branches are laid
+// out. Only what the Compiler emits is supported: one class, no fields,
+// no interfaces and no attributes but Code. What does not fit a class
+// file, such as a method over 32767 bytes, throws NotCompiled.
+class ClassFile {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  // Opcodes
+
+  static final int ICONST_0 = 0x03;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC = 0x12;
+  static final int LDC_W = 0x13;
+  static final int ILOAD = 0x15;
+  static final int ALOAD = 0x19;
+  static final int AALOAD = 0x32;
+  static final int ISTORE = 0x36;
+  static final int ASTORE = 0x3a;
+  static final int AASTORE = 0x53;
+  static final int POP = 0x57;
+  static final int DUP = 0x59;
+  static final int SWAP = 0x5f;
+  static final int IADD = 0x60;
+  static final int ISUB = 0x64;
+  static final int IMUL = 0x68;
+  static final int IDIV = 0x6c;
+  static final int IFEQ = 0x99;
+  static final int IF_ICMPNE = 0xa0;
+  static final int IF_ACMPEQ = 0xa5;
+  static final int GOTO = 0xa7;
+  static final int TABLESWITCH = 0xaa;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2;
+  static final int GETFIELD = 0xb4;
+  static final int PUTFIELD = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int NEW = 0xbb;
+  static final int ANEWARRAY = 0xbd;
+  static final int ATHROW = 0xbf;
+  static final int CHECKCAST = 0xc0;
+  static final int WIDE = 0xc4;
+
+  // Constant pool tags
+
+  static final int CONSTANT_UTF8 = 1;
+  static final int CONSTANT_INTEGER = 3;
+  static final int CONSTANT_CLASS = 7;
+  static final int CONSTANT_FIELDREF = 9;
+  static final int CONSTANT_METHODREF = 10;
+  static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final Bytes pool = new Bytes();
+  private final HashMap<String, Integer> poolIndices = new HashMap<>();
+  private int poolSize = 1;
+
+  private final int access, thisClass, superClass, codeName;
+  private final ArrayList<Method> methods = new ArrayList<>();
+
+  public ClassFile(int access, String name, String superName) {
+    this.access = access;
+    this.thisClass = classRef(name);
+    this.superClass = classRef(superName);
+    this.codeName = utf8("Code");
+  }
+
+  Method method(int access, String name, String descriptor) {
+    Method m = new Method(access, name, descriptor);
+    methods.add(m);
+    return m;
+  }
+
+  byte[] toByteArray() {
+    Bytes out = new Bytes();
+    out.u4(0xcafebabe);
+    out.u2(0);
+    out.u2(49);
+    out.u2(poolSize);
+    out.bytes(pool);
+    out.u2(access);
+    out.u2(thisClass);
+    out.u2(superClass);
+    out.u2(0);
+    out.u2(0);
+    out.u2(methods.size());
+    for (Method m : methods)
+      m.write(out);
+    out.u2(0);
+
+    byte[] bytes = new byte[out.length];
+    System.arraycopy(out.data, 0, bytes, 0, out.length);
+    return bytes;
+  }
+
+  // Constant pool: each entry is written once, and found again by a key
+  // made of its tag and contents
+
+  int utf8(String s) {
+    String key = CONSTANT_UTF8 + " " + s;
+    Integer index = poolIndices.get(key);
+    if (index != null)
+      return index;
+
+    // Modified UTF-8: NUL takes two bytes, and no character takes four
+    Bytes encoded = new Bytes();
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x01 && c <= 0x7f) {
+        encoded.u1(c);
+      } else if (c <= 0x7ff) {
+        encoded.u1(0xc0 | (c >> 6));
+        encoded.u1(0x80 | (c & 0x3f));
+      } else {
+        encoded.u1(0xe0 | (c >> 12));
+        encoded.u1(0x80 | ((c >> 6) & 0x3f));
+        encoded.u1(0x80 | (c & 0x3f));
+      }
+    }
+    if (encoded.length > 0xffff)
+      throw new NotCompiled();
+
+    pool.u1(CONSTANT_UTF8);
+    pool.u2(encoded.length);
+    pool.bytes(encoded);
+    return add(key);
+  }
+
+  int integer(int value) {
+    String key = CONSTANT_INTEGER + " " + value;
+    Integer index = poolIndices.get(key);
+    if (index != null)
+      return index;
+
+    pool.u1(CONSTANT_INTEGER);
+    pool.u4(value);
+    return add(key);
+  }
+
+  int classRef(String name) {
+    String key = CONSTANT_CLASS + " " + name;
+    Integer index = poolIndices.get(key);
+    if (index != null)
+      return index;
+
+    int nameIndex = utf8(name);
+    pool.u1(CONSTANT_CLASS);
+    pool.u2(nameIndex);
+    return add(key);
+  }
+
+  int memberRef(int tag, String owner, String name, String descriptor) {
+    String key = tag + " " + owner + "." + name + ":" + descriptor;
+    Integer index = poolIndices.get(key);
+    if (index != null)
+      return index;
+
+    int ownerIndex = classRef(owner);
+    int nameAndType = nameAndType(name, descriptor);
+    pool.u1(tag);
+    pool.u2(ownerIndex);
+    pool.u2(nameAndType);
+    return add(key);
+  }
+
+  int nameAndType(String name, String descriptor) {
+    String key = CONSTANT_NAME_AND_TYPE + " " + name + ":" + descriptor;
+    Integer index = poolIndices.get(key);
+    if (index != null)
+      return index;
+
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    pool.u1(CONSTANT_NAME_AND_TYPE);
+    pool.u2(nameIndex);
+    pool.u2(descriptorIndex);
+    return add(key);
+  }
+
+  private int add(String key) {
+    if (poolSize > 0xffff)
+      throw new NotCompiled();
+
+    poolIndices.put(key, poolSize);
+    return poolSize++;
+  }
+
+  // The number of local variable slots a method's arguments take
+  static int argumentSlots(String descriptor) {
+    int slots = 0;
+    for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+      char c = descriptor.charAt(i);
+      if (c == 'J' || c == 'D')
+        slots++;
+      while (c == '[')
+        c = descriptor.charAt(++i);
+      if (c == 'L')
+        i = descriptor.indexOf(';', i);
+      slots++;
+    }
+    return slots;
+  }
+
+  static int returnSlots(String descriptor) {
+    char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+    return c == 'V' ? 0 : c == 'J' || c == 'D' ? 2 : 1;
+  }
+
+  // Methods
+
+  class Method {
+    final int access, name, descriptor;
+    final Bytes code = new Bytes();
+    final Bytes handlers = new Bytes();
+    final ArrayList<Label> labels = new ArrayList<>();
+    int handlerCount;
+    // Operand stack depth at the next instruction, in slots
+    int stack, maxStack, maxLocals;
+
+    Method(int access, String name, String descriptor) {
+      this.access = access;
+      this.name = utf8(name);
+      this.descriptor = utf8(descriptor);
+      this.maxLocals = argumentSlots(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+    }
+
+    int newLocal() {
+      return maxLocals++;
+    }
+
+    // An instruction without operands that changes the stack by delta
+    void op(int opcode, int delta) {
+      code.u1(opcode);
+      grow(delta);
+    }
+
+    void intConstant(int value) {
+      if (value >= -1 && value <= 5) {
+        code.u1(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        code.u1(BIPUSH);
+        code.u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        code.u1(SIPUSH);
+        code.u2(value);
+      } else {
+        int index = integer(value);
+        if (index <= 0xff) {
+          code.u1(LDC);
+          code.u1(index);
+        } else {
+          code.u1(LDC_W);
+          code.u2(index);
+        }
+      }
+      grow(1);
+    }
+
+    // ILOAD, ALOAD, ISTORE or ASTORE
+    void local(int opcode, int local) {
+      if (local <= 3) {
+        // The four one-byte forms of each follow the two-byte one
+        int first = opcode < ISTORE ? 0x1a + (opcode - ILOAD) * 4 : 0x3b + (opcode - ISTORE) * 4;
+        code.u1(first + local);
+      } else if (local <= 0xff) {
+        code.u1(opcode);
+        code.u1(local);
+      } else {
+        code.u1(WIDE);
+        code.u1(opcode);
+        code.u2(local);
+      }
+      grow(opcode < ISTORE ? 1 : -1);
+    }
+
+    void field(int opcode, String owner, String name, String descriptor) {
+      int index = memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+      code.u1(opcode);
+      code.u2(index);
+
+      int size = descriptor.equals("J") || descriptor.equals("D") ? 2 : 1;
+      switch (opcode) {
+        case GETSTATIC:
+          grow(size);
+          break;
+        case GETFIELD:
+          grow(size - 1);
+          break;
+        case PUTFIELD:
+          grow(-size - 1);
+          break;
+        default:
+          throw new Error();
+      }
+    }
+
+    void invoke(int opcode, String owner, String name, String descriptor) {
+      int index = memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+      code.u1(opcode);
+      code.u2(index);
+      grow(returnSlots(descriptor) - argumentSlots(descriptor) - (opcode == INVOKESTATIC ? 0 : 1));
+    }
+
+    // NEW, ANEWARRAY or CHECKCAST
+    void type(int opcode, String name) {
+      int index = classRef(name);
+      code.u1(opcode);
+      code.u2(index);
+      grow(opcode == NEW ? 1 : 0);
+    }
+
+    // A conditional branch, or GOTO
+    void jump(int opcode, Label target) {
+      int at = code.length;
+      code.u1(opcode);
+      code.u2(0);
+      grow(opcode == GOTO ? 0 : opcode == IFEQ ? -1 : -2);
+      target.from(this, at, at + 1, 2);
+    }
+
+    void tableSwitch(Label dflt, Label[] targets) {
+      int at = code.length;
+      code.u1(TABLESWITCH);
+      while (code.length % 4 != 0)
+        code.u1(0);
+      grow(-1);
+      dflt.from(this, at, code.length, 4);
+      code.u4(0);
+      code.u4(0);
+      code.u4(targets.length - 1);
+      for (Label target : targets) {
+        target.from(this, at, code.length, 4);
+        code.u4(0);
+      }
+    }
+
+    // Code after a GOTO, ATHROW or return is only reached by jumping to a
+    // label, so it starts with the stack depth of the jumps
+    void bind(Label label) {
+      label.position = code.length;
+      if (label.stack >= 0)
+        stack = label.stack;
+      else
+        label.stack = stack;
+    }
+
+    // The JVM clears the stack for a handler, then pushes the exception
+    void bindHandler(Label label) {
+      label.stack = 1;
+      bind(label);
+    }
+
+    void handler(Label start, Label end, Label handler, String type) {
+      handlers.u2(start.position);
+      handlers.u2(end.position);
+      handlers.u2(handler.position);
+      handlers.u2(classRef(type));
+      handlerCount++;
+    }
+
+    void grow(int delta) {
+      stack += delta;
+      if (stack > maxStack)
+        maxStack = stack;
+    }
+
+    void write(Bytes out) {
+      if (code.length > Short.MAX_VALUE || maxLocals > 0xffff)
+        throw new NotCompiled();
+      for (Label label : labels)
+        label.patch(code);
+
+      out.u2(access);
+      out.u2(name);
+      out.u2(descriptor);
+      out.u2(1);
+      out.u2(codeName);
+      out.u4(12 + code.length + handlers.length);
+      out.u2(maxStack);
+      out.u2(maxLocals);
+      out.u4(code.length);
+      out.bytes(code);
+      out.u2(handlerCount);
+      out.bytes(handlers);
+      out.u2(0);
+    }
+  }
+
+  // A position in a method's code, jumped to before or after it is bound
+  static class Label {
+    int position = -1;
+    // The stack depth at the label, or -1 before anything reaches it
+    int stack = -1;
+    // For each jump here: the jump's position, its offset's and the
+    // offset's size in bytes
+    final ArrayList<int[]> jumps = new ArrayList<>();
+
+    void from(Method m, int at, int offsetAt, int size) {
+      if (jumps.isEmpty())
+        m.labels.add(this);
+      jumps.add(new int[] { at, offsetAt, size });
+      stack = m.stack;
+    }
+
+    void patch(Bytes code) {
+      for (int[] jump : jumps) {
+        int offset = position - jump[0];
+        if (jump[2] == 2)
+          code.u2At(jump[1], offset);
+        else
+          code.u4At(jump[1], offset);
+      }
+    }
+  }
+
+  static class Bytes {
+    byte[] data = new byte[64];
+    int length;
+
+    void u1(int b) {
+      if (length == data.length) {
+        byte[] larger = new byte[2 * data.length];
+        System.arraycopy(data, 0, larger, 0, length);
+        data = larger;
+      }
+      data[length++] = (byte) b;
+    }
+
+    void u2(int s) {
+      u1(s >> 8);
+      u1(s);
+    }
+
+    void u4(int i) {
+      u2(i >> 16);
+      u2(i);
+    }
+
+    void bytes(Bytes b) {
+      for (int i = 0; i < b.length; i++)
+        u1(b.data[i]);
+    }
+
+    void u2At(int at, int s) {
+      data[at] = (byte) (s >> 8);
+      data[at + 1] = (byte) s;
+    }
+
+    void u4At(int at, int i) {
+      u2At(at, i >> 16);
+      u2At(at + 2, i);
+    }
+  }
+}
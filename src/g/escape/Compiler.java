@@ -0,0 +1,1028 @@
+package g.escape;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import util.Symbol;
+import g.escape.ClassFile.Label;
+import g.escape.IntArithmetic.Operation;
+
+// A bytecode compiler: compiles a Program into one JVM class, loaded as a
+// hidden class. The program's body is the class's run method and each
+// lambda is a method of its own, which closures (CLGenerated) reach
+// through the class's call method. Variables are JVM locals or loads from
+// a closure's captured values, and arithmetic and comparisons work on
+// ints, boxing only the values that leave them. Large expressions are
+// split into several methods, so that the JIT compiles each of them.
+//
+// Compiled code runs in direct style on the Java stack, and Escape is a
+// one-shot exception. Programs with a Reset or Shift are not compiled and
+// always run on the trampolined Interpreter, as do those too large for a
+// class file. Programs that re-enter an escape continuation after its
+// Escape returned, or that recurse deeper than the Java stack allows, are
+// only found out by running them: that run is abandoned and the program
+// re-run on the interpreter, which is safe because nothing is observable
+// before a program's value is returned. The CompiledProgram then goes
+// straight to the interpreter, so only its first such run pays for both
+// engines.
+public class Compiler {
+
+  // Expressions of more nodes than this move their largest parts into
+  // methods of their own
+  static final int METHOD_NODES = 50;
+
+  // The generated class's name before the JVM makes it unique
+  static final String GENERATED = "g/escape/GeneratedProgram";
+
+  static final String GENERATED_CODE = "g/escape/GeneratedCode";
+  static final String COMPILER = "g/escape/Compiler";
+  static final String VALUE = "g/escape/Value";
+  static final String INT_VALUE = "g/escape/IntValue";
+  static final String BOOL_VALUE = "g/escape/BoolValue";
+  static final String LAMBDA_VALUE = "g/escape/LambdaValue";
+  static final String ENVIRONMENT = "g/escape/Environment";
+  static final String CL_ESCAPE = "g/escape/CLEscape";
+  static final String ESCAPE_THROW = "g/escape/EscapeThrow";
+
+  static final String RUN = "(Lg/escape/Environment;)Lg/escape/Value;";
+  static final String CALL = "(I[Lg/escape/Value;Lg/escape/Value;)Lg/escape/Value;";
+  static final String LAMBDA = "([Lg/escape/Value;Lg/escape/Value;)Lg/escape/Value;";
+
+  static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  final ClassFile cf = new ClassFile(ClassFile.ACC_FINAL | ClassFile.ACC_SUPER, GENERATED, GENERATED_CODE);
+  // The Variables the code looks up by name, indexed as in GeneratedCode.names
+  final ArrayList<Variable> names = new ArrayList<>();
+  final HashMap<Symbol, Integer> nameIndices = new HashMap<>();
+  final Set<Expression> outlined = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+  int lambdas, blocks;
+
+  static CompiledProgram compile (Program p, Environment env) {
+    Expression e = Interpreter.convert(p.e, env, null);
+
+    try {
+      return new CompiledProgram(p, new Compiler().generate(e));
+    } catch (NotCompiled | StackOverflowError nc) {
+      return new CompiledProgram(p, null);
+    }
+  }
+
+  GeneratedCode generate (Expression e) {
+    outline(e);
+    new Body(cf.method(0, "run", RUN), true, e).compileMethod(null);
+
+    ClassFile.Method init = cf.method(0, "<init>", "([Lg/escape/Variable;)V");
+    init.local(ClassFile.ALOAD, 0);
+    init.local(ClassFile.ALOAD, 1);
+    init.invoke(ClassFile.INVOKESPECIAL, GENERATED_CODE, "<init>", "([Lg/escape/Variable;)V");
+    init.op(ClassFile.RETURN, 0);
+
+    // call(lambda, captured, argument) jumps to lambda's method
+    ClassFile.Method call = cf.method(0, "call", CALL);
+    Label dflt = new Label();
+    if (lambdas > 0) {
+      call.local(ClassFile.ALOAD, 0);
+      call.local(ClassFile.ALOAD, 2);
+      call.local(ClassFile.ALOAD, 3);
+      call.local(ClassFile.ILOAD, 1);
+      Label[] targets = new Label[lambdas];
+      for (int i = 0; i < lambdas; i++)
+        targets[i] = new Label();
+      call.tableSwitch(dflt, targets);
+      for (int i = 0; i < lambdas; i++) {
+        call.bind(targets[i]);
+        call.invoke(ClassFile.INVOKESPECIAL, GENERATED, "lambda$" + i, LAMBDA);
+        call.op(ClassFile.ARETURN, -1);
+      }
+    }
+    call.bind(dflt);
+    call.type(ClassFile.NEW, "java/lang/Error");
+    call.op(ClassFile.DUP, 1);
+    call.invoke(ClassFile.INVOKESPECIAL, "java/lang/Error", "<init>", "()V");
+    call.op(ClassFile.ATHROW, -1);
+
+    try {
+      // Not STRONG: the class is unloaded with the last closure made by it
+      Class<?> c = LOOKUP.defineHiddenClass(cf.toByteArray(), true).lookupClass();
+      return (GeneratedCode) c.getDeclaredConstructor(Variable[].class)
+          .newInstance((Object) names.toArray(new Variable[names.size()]));
+    } catch (ReflectiveOperationException roe) {
+      throw new Error(roe);
+    }
+  }
+
+  // Marks the parts of e to generate as methods of their own, largest
+  // first, until at most METHOD_NODES nodes of e are left in its method,
+  // and returns how many are left. Lambda bodies are methods anyway.
+  int outline (Expression e) {
+    Expression[] parts;
+    int nodes = 1;
+
+    switch (e.tag) {
+      case Expression.INT_ARITHMETIC: {
+        IntArithmetic arith = (IntArithmetic) e;
+
+        parts = new Expression[] { arith.operand1, arith.operand2 };
+        break;
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+
+        parts = new Expression[] { intComp.operand1, intComp.operand2 };
+        break;
+      }
+      case Expression.IF: {
+        If ifE = (If) e;
+
+        parts = new Expression[] { ifE.guard, ifE.t, ifE.f };
+        break;
+      }
+      case Expression.FLAT_LAMBDA_DEF: {
+        FlatLambdaDef lambdaDef = (FlatLambdaDef) e;
+
+        outline(lambdaDef.body);
+        return nodes + lambdaDef.captures.length;
+      }
+      case Expression.LAMBDA_APP: {
+        LambdaApp lambdaApp = (LambdaApp) e;
+
+        parts = new Expression[] { lambdaApp.lambda, lambdaApp.argument };
+        break;
+      }
+      case Expression.ESCAPE: {
+        Escape escape = (Escape) e;
+
+        parts = new Expression[] { escape.body };
+        break;
+      }
+      case Expression.SEQ: {
+        Seq seq = (Seq) e;
+
+        parts = seq.expressions;
+        break;
+      }
+      case Expression.LET: {
+        Let let = (Let) e;
+
+        parts = new Expression[] { let.value, let.body };
+        break;
+      }
+      case Expression.LET_REC: {
+        LetRec letRec = (LetRec) e;
+        FlatLambdaDef lambdaDef = (FlatLambdaDef) letRec.lambda;
+
+        outline(lambdaDef.body);
+        nodes += lambdaDef.captures.length;
+        parts = new Expression[] { letRec.body };
+        break;
+      }
+      default:
+        return nodes;
+    }
+
+    int[] sizes = new int[parts.length];
+    for (int i = 0; i < parts.length; i++)
+      nodes += sizes[i] = outline(parts[i]);
+
+    while (nodes > METHOD_NODES) {
+      int largest = -1;
+      for (int i = 0; i < parts.length; i++)
+        if (sizes[i] > 1 && !outlined.contains(parts[i]) && (largest < 0 || sizes[i] > sizes[largest]))
+          largest = i;
+      if (largest < 0)
+        break;
+
+      // Left behind is the call
+      outlined.add(parts[largest]);
+      nodes -= sizes[largest] - 1;
+    }
+    return nodes;
+  }
+
+  // Generates lambdaDef's body as the method lambda$<index>
+  int lambda (FlatLambdaDef lambdaDef) {
+    int index = lambdas++;
+    new Body(cf.method(ClassFile.ACC_PRIVATE, "lambda$" + index, LAMBDA), false, lambdaDef.body)
+        .compileMethod(new Local(lambdaDef.formalArgument, 2, null));
+    return index;
+  }
+
+  int name (Variable v) {
+    Integer index = nameIndices.get(v.symbol);
+    if (index == null) {
+      index = names.size();
+      names.add(v);
+      nameIndices.put(v.symbol, index);
+    }
+    return index;
+  }
+
+  // A method being generated. Its local 0 is the GeneratedCode and local
+  // 1 either the environment, in the program's body and the methods split
+  // from it, or the closure's captured values; the program's variables
+  // are in later locals.
+  class Body {
+    final ClassFile.Method m;
+    final boolean top;
+    final Expression root;
+    // The types of the values on the stack, as ISTORE and ASTORE take
+    // them: 'I' for an int, 'A' for a reference
+    final StringBuilder pending = new StringBuilder();
+
+    public Body(ClassFile.Method m, boolean top, Expression root) {
+      this.m = m;
+      this.top = top;
+      this.root = root;
+    }
+
+    void compileMethod (Local scope) {
+      compile(root, scope);
+      m.op(ClassFile.ARETURN, -1);
+    }
+
+    // Leaves e's Value on the stack
+    void compile (Expression e, Local scope) {
+      if (e != root && outlined.contains(e)) {
+        callBlock(e, scope);
+        return;
+      }
+
+      switch (e.tag) {
+        case Expression.INT_CONSTANT:
+        case Expression.INT_ARITHMETIC: {
+          compileInt(e, scope);
+          m.invoke(ClassFile.INVOKESTATIC, INT_VALUE, "valueOf", "(I)Lg/escape/IntValue;");
+          return;
+        }
+        case Expression.BOOL_CONSTANT: {
+          BoolConstant boolE = (BoolConstant) e;
+
+          m.field(ClassFile.GETSTATIC, BOOL_VALUE, boolE.javaBool ? "TRUE" : "FALSE", "Lg/escape/BoolValue;");
+          return;
+        }
+        case Expression.INT_COMPARISON: {
+          Label f = new Label(), end = new Label();
+
+          compileTest(e, scope, f);
+          m.field(ClassFile.GETSTATIC, BOOL_VALUE, "TRUE", "Lg/escape/BoolValue;");
+          m.jump(ClassFile.GOTO, end);
+          m.bind(f);
+          m.field(ClassFile.GETSTATIC, BOOL_VALUE, "FALSE", "Lg/escape/BoolValue;");
+          m.bind(end);
+          return;
+        }
+        case Expression.IF: {
+          If ifE = (If) e;
+          Label f = new Label(), end = new Label();
+
+          compileTest(ifE.guard, scope, f);
+          compile(ifE.t, scope);
+          m.jump(ClassFile.GOTO, end);
+          m.bind(f);
+          compile(ifE.f, scope);
+          m.bind(end);
+          return;
+        }
+        case Expression.LEXICAL_VARIABLE: {
+          LexicalVariable lv = (LexicalVariable) e;
+
+          int depth = lv.depth;
+          Local local = scope;
+          while (depth > 0 && local != null) {
+            local = local.next;
+            depth--;
+          }
+
+          if (local != null) {
+            m.local(ClassFile.ALOAD, local.slot);
+          } else if (top) {
+            // Bound by the environment the program runs in
+            m.local(ClassFile.ALOAD, 1);
+            m.intConstant(depth);
+            m.invoke(ClassFile.INVOKEVIRTUAL, ENVIRONMENT, "lookup", "(I)Lg/escape/Value;");
+          } else {
+            // A lambda's body starts from its captured values
+            throw new Error();
+          }
+          return;
+        }
+        case Expression.CAPTURED_VARIABLE: {
+          CapturedVariable cv = (CapturedVariable) e;
+
+          m.local(ClassFile.ALOAD, 1);
+          m.intConstant(cv.index);
+          m.op(ClassFile.AALOAD, -1);
+          return;
+        }
+        case Expression.VARIABLE: {
+          Variable var = (Variable) e;
+
+          // Names bound in a hashed environment, by the program or before
+          for (Local local = scope; local != null; local = local.next) {
+            if (local.var.symbol == var.symbol) {
+              m.local(ClassFile.ALOAD, local.slot);
+              return;
+            }
+          }
+
+          if (top)
+            m.local(ClassFile.ALOAD, 1);
+          m.local(ClassFile.ALOAD, 0);
+          m.field(ClassFile.GETFIELD, GENERATED_CODE, "names", "[Lg/escape/Variable;");
+          m.intConstant(name(var));
+          m.op(ClassFile.AALOAD, -1);
+          if (top)
+            m.invoke(ClassFile.INVOKEVIRTUAL, ENVIRONMENT, "lookup", "(Lg/escape/Variable;)Lg/escape/Value;");
+          else
+            // Unbound: fails by name when evaluated, as in the interpreter
+            m.invoke(ClassFile.INVOKESTATIC, COMPILER, "unbound", "(Lg/escape/Variable;)Lg/escape/Value;");
+          return;
+        }
+        case Expression.FLAT_LAMBDA_DEF: {
+          FlatLambdaDef lambdaDef = (FlatLambdaDef) e;
+
+          int lambda = lambda(lambdaDef);
+          m.local(ClassFile.ALOAD, 0);
+          m.intConstant(lambda);
+          m.intConstant(lambdaDef.captures.length);
+          m.type(ClassFile.ANEWARRAY, VALUE);
+          for (int i = 0; i < lambdaDef.captures.length; i++) {
+            m.op(ClassFile.DUP, 1);
+            m.intConstant(i);
+            compile(lambdaDef.captures[i], scope);
+            m.op(ClassFile.AASTORE, -3);
+          }
+          m.invoke(ClassFile.INVOKESTATIC, COMPILER, "closure",
+              "(Lg/escape/GeneratedCode;I[Lg/escape/Value;)Lg/escape/Value;");
+          return;
+        }
+        case Expression.LAMBDA_APP: {
+          LambdaApp lambdaApp = (LambdaApp) e;
+
+          compile(lambdaApp.lambda, scope);
+          pending.append('A');
+          compile(lambdaApp.argument, scope);
+          pending.setLength(pending.length() - 1);
+          m.invoke(ClassFile.INVOKESTATIC, COMPILER, "apply", "(Lg/escape/Value;Lg/escape/Value;)Lg/escape/Value;");
+          return;
+        }
+        case Expression.ESCAPE: {
+          Escape escape = (Escape) e;
+
+          // A handler starts on an empty stack, so what is on the stack
+          // waits in locals meanwhile
+          String spilled = pending.toString();
+          int[] spills = new int[spilled.length()];
+          for (int i = spills.length - 1; i >= 0; i--) {
+            spills[i] = m.newLocal();
+            m.local(spilled.charAt(i) == 'I' ? ClassFile.ISTORE : ClassFile.ASTORE, spills[i]);
+          }
+          pending.setLength(0);
+
+          int k = m.newLocal();
+          m.type(ClassFile.NEW, CL_ESCAPE);
+          m.op(ClassFile.DUP, 1);
+          m.invoke(ClassFile.INVOKESPECIAL, CL_ESCAPE, "<init>", "()V");
+          m.local(ClassFile.ASTORE, k);
+          int bound = m.newLocal();
+          m.type(ClassFile.NEW, LAMBDA_VALUE);
+          m.op(ClassFile.DUP, 1);
+          m.local(ClassFile.ALOAD, k);
+          m.invoke(ClassFile.INVOKESPECIAL, LAMBDA_VALUE, "<init>", "(Lg/escape/Closure;)V");
+          m.local(ClassFile.ASTORE, bound);
+
+          Label start = new Label(), end = new Label(), handler = new Label(), own = new Label(), done = new Label();
+          m.bind(start);
+          compile(escape.body, new Local(escape.formalArgument, bound, scope));
+          deactivate(k);
+          m.bind(end);
+          m.jump(ClassFile.GOTO, done);
+
+          // Thrown to k, or through k to an Escape further out
+          m.bindHandler(handler);
+          deactivate(k);
+          m.op(ClassFile.DUP, 1);
+          m.field(ClassFile.GETFIELD, ESCAPE_THROW, "target", "Lg/escape/CLEscape;");
+          m.local(ClassFile.ALOAD, k);
+          m.jump(ClassFile.IF_ACMPEQ, own);
+          m.op(ClassFile.ATHROW, -1);
+          m.bind(own);
+          m.field(ClassFile.GETFIELD, ESCAPE_THROW, "value", "Lg/escape/Value;");
+          m.bind(done);
+          m.handler(start, end, handler, ESCAPE_THROW);
+
+          if (spills.length > 0) {
+            int value = m.newLocal();
+            m.local(ClassFile.ASTORE, value);
+            for (int i = 0; i < spills.length; i++)
+              m.local(spilled.charAt(i) == 'I' ? ClassFile.ILOAD : ClassFile.ALOAD, spills[i]);
+            m.local(ClassFile.ALOAD, value);
+          }
+          pending.append(spilled);
+          return;
+        }
+        case Expression.SEQ: {
+          Seq seq = (Seq) e;
+
+          for (int i = 0; i < seq.expressions.length; i++) {
+            if (i > 0)
+              m.op(ClassFile.POP, -1);
+            compile(seq.expressions[i], scope);
+          }
+          return;
+        }
+        case Expression.LET: {
+          Let let = (Let) e;
+
+          compile(let.value, scope);
+          int slot = m.newLocal();
+          m.local(ClassFile.ASTORE, slot);
+          compile(let.body, new Local(let.var, slot, scope));
+          return;
+        }
+        case Expression.LET_REC: {
+          // As in the interpreter, the closure's captures are loaded from
+          // the scope that already binds it
+          LetRec letRec = (LetRec) e;
+          FlatLambdaDef lambdaDef = (FlatLambdaDef) letRec.lambda;
+
+          int lambda = lambda(lambdaDef);
+          int captured = m.newLocal();
+          m.intConstant(lambdaDef.captures.length);
+          m.type(ClassFile.ANEWARRAY, VALUE);
+          m.local(ClassFile.ASTORE, captured);
+          int slot = m.newLocal();
+          m.local(ClassFile.ALOAD, 0);
+          m.intConstant(lambda);
+          m.local(ClassFile.ALOAD, captured);
+          m.invoke(ClassFile.INVOKESTATIC, COMPILER, "closure",
+              "(Lg/escape/GeneratedCode;I[Lg/escape/Value;)Lg/escape/Value;");
+          m.local(ClassFile.ASTORE, slot);
+
+          Local inner = new Local(letRec.var, slot, scope);
+          for (int i = 0; i < lambdaDef.captures.length; i++) {
+            m.local(ClassFile.ALOAD, captured);
+            m.intConstant(i);
+            compile(lambdaDef.captures[i], inner);
+            m.op(ClassFile.AASTORE, -3);
+          }
+          compile(letRec.body, inner);
+          return;
+        }
+        case Expression.RESET:
+        case Expression.SHIFT:
+          // Delimited continuations need the interpreter's stack
+          throw new NotCompiled();
+      }
+
+      // LambdaDef does not survive closure conversion
+      throw new Error();
+    }
+
+    // Leaves e's int on the stack
+    void compileInt (Expression e, Local scope) {
+      if (e == root || !outlined.contains(e)) {
+        switch (e.tag) {
+          case Expression.INT_CONSTANT: {
+            IntConstant intE = (IntConstant) e;
+
+            m.intConstant(intE.javaInt);
+            return;
+          }
+          case Expression.INT_ARITHMETIC: {
+            IntArithmetic arith = (IntArithmetic) e;
+
+            compileInt(arith.operand1, scope);
+            pending.append('I');
+            compileInt(arith.operand2, scope);
+            pending.setLength(pending.length() - 1);
+
+            switch (arith.op) {
+              case PLUS:
+                m.op(ClassFile.IADD, -1);
+                return;
+              case MINUS:
+                m.op(ClassFile.ISUB, -1);
+                return;
+              case MULT:
+                m.op(ClassFile.IMUL, -1);
+                return;
+              case DIV:
+                m.op(ClassFile.IDIV, -1);
+                return;
+              default:
+                throw new Error();
+            }
+          }
+        }
+      }
+
+      compile(e, scope);
+      m.type(ClassFile.CHECKCAST, INT_VALUE);
+      m.field(ClassFile.GETFIELD, INT_VALUE, "javaInt", "I");
+    }
+
+    // Jumps to f if guard is false, and falls through if it is true
+    void compileTest (Expression guard, Local scope, Label f) {
+      if ((guard == root || !outlined.contains(guard)) && guard.tag == Expression.INT_COMPARISON) {
+        IntComparison intComp = (IntComparison) guard;
+
+        compileInt(intComp.operand1, scope);
+        pending.append('I');
+        compileInt(intComp.operand2, scope);
+        pending.setLength(pending.length() - 1);
+        m.jump(ClassFile.IF_ICMPNE, f);
+        return;
+      }
+
+      compile(guard, scope);
+      m.type(ClassFile.CHECKCAST, BOOL_VALUE);
+      m.field(ClassFile.GETFIELD, BOOL_VALUE, "javaBool", "Z");
+      m.jump(ClassFile.IFEQ, f);
+    }
+
+    // Generates e as a method of its own, which takes local 1 and every
+    // variable in scope, and calls it
+    void callBlock (Expression e, Local scope) {
+      ArrayList<Local> locals = new ArrayList<>();
+      for (Local local = scope; local != null; local = local.next)
+        locals.add(local);
+      // A method takes at most 255 slots of arguments, with its receiver
+      if (locals.size() > 253)
+        throw new NotCompiled();
+
+      StringBuilder descriptor = new StringBuilder("(");
+      descriptor.append(top ? "Lg/escape/Environment;" : "[Lg/escape/Value;");
+      for (int i = 0; i < locals.size(); i++)
+        descriptor.append("Lg/escape/Value;");
+      descriptor.append(")Lg/escape/Value;");
+      String name = "block$" + blocks++;
+
+      Local inner = null;
+      for (int i = locals.size() - 1; i >= 0; i--)
+        inner = new Local(locals.get(i).var, 2 + i, inner);
+      new Body(cf.method(ClassFile.ACC_PRIVATE, name, descriptor.toString()), top, e).compileMethod(inner);
+
+      m.local(ClassFile.ALOAD, 0);
+      m.local(ClassFile.ALOAD, 1);
+      for (Local local : locals)
+        m.local(ClassFile.ALOAD, local.slot);
+      m.invoke(ClassFile.INVOKESPECIAL, GENERATED, name, descriptor.toString());
+    }
+
+    void deactivate (int k) {
+      m.local(ClassFile.ALOAD, k);
+      m.intConstant(0);
+      m.field(ClassFile.PUTFIELD, CL_ESCAPE, "active", "Z");
+    }
+  }
+
+  // Called by generated code
+
+  static Value apply (Value f, Value argument) {
+    Closure cl = ((LambdaValue) f).cl;
+
+    // Closures from the environment were made by the interpreter
+    if (cl.tag == Closure.CL_COMPILED)
+      return ((CLCompiled) cl).call(argument);
+    return Interpreter.call(cl, argument);
+  }
+
+  static Value closure (GeneratedCode code, int lambda, Value[] captured) {
+    return new LambdaValue(new CLGenerated(code, lambda, captured));
+  }
+
+  static Value unbound (Variable v) {
+    throw new NoSuchElementException(v.name);
+  }
+
+  public static void main(String[] args) {
+    // Differential check against the interpreter
+    Expression zHalf =
+        new LambdaDef(
+            new Variable("x"),
+            new LambdaApp(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("v"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("x"),
+                            new Variable("x")),
+                        new Variable("v")))));
+    Expression z = new LambdaDef(new Variable("f"), new LambdaApp(zHalf, zHalf));
+
+    Program[] programs = {
+        // Arithmetic over a variable from the initial environment
+        new Program(
+            new If(
+                new IntComparison(
+                    new Variable("y"),
+                    new IntConstant(3)),
+                new IntArithmetic(
+                    Operation.MULT,
+                    new Variable("y"),
+                    new IntArithmetic(
+                        Operation.DIV,
+                        new IntConstant(10),
+                        new Variable("y"))),
+                new IntConstant(0))),
+
+        // Closures capturing outer variables
+        new Program(
+            new LambdaApp(
+                new LambdaApp(
+                    new LambdaDef(
+                        new Variable("x"),
+                        new LambdaDef(
+                            new Variable("w"),
+                            new IntArithmetic(
+                                Operation.MINUS,
+                                new Variable("x"),
+                                new Variable("w")))),
+                    new Variable("y")),
+                new IntConstant(10))),
+
+        // Escape out of a sequence
+        new Program(
+            new Seq(
+                new IntConstant(3),
+                new Escape(
+                    new Variable("esc"),
+                    new Seq(
+                        new IntConstant(4),
+                        new LambdaApp(
+                            new Variable("esc"),
+                            new Variable("y")),
+                        new IntConstant(6))))),
+
+        // Recursion through the Z combinator
+        new Program(
+            new LambdaApp(
+                new LambdaApp(
+                    z,
+                    new LambdaDef(
+                        new Variable("sum"),
+                        new LambdaDef(
+                            new Variable("n"),
+                            new If(
+                                new IntComparison(
+                                    new Variable("n"),
+                                    new IntConstant(0)),
+                                new IntConstant(0),
+                                new IntArithmetic(
+                                    Operation.PLUS,
+                                    new Variable("n"),
+                                    new LambdaApp(
+                                        new Variable("sum"),
+                                        new IntArithmetic(
+                                            Operation.MINUS,
+                                            new Variable("n"),
+                                            new IntConstant(1)))))))),
+                new IntConstant(1000))),
+
+        // Re-entering an escape after it returned falls back to the
+        // interpreter: r is first \x. k x, then \w. 7 once that lambda
+        // re-enters k with it, so the result is 7
+        new Program(
+            new LambdaApp(
+                new LambdaDef(
+                    new Variable("r"),
+                    new LambdaApp(
+                        new Variable("r"),
+                        new LambdaDef(
+                            new Variable("w"),
+                            new IntConstant(7)))),
+                new Escape(
+                    new Variable("k"),
+                    new LambdaDef(
+                        new Variable("x"),
+                        new LambdaApp(
+                            new Variable("k"),
+                            new Variable("x")))))),
+
+        // So does a Shift: 1 + reset (10 + shift k. k (k y)), y = 3, is 24
+        new Program(
+            new IntArithmetic(
+                Operation.PLUS,
+                new IntConstant(1),
+                new Reset(
+                    new IntArithmetic(
+                        Operation.PLUS,
+                        new IntConstant(10),
+                        new Shift(
+                            new Variable("k"),
+                            new LambdaApp(
+                                new Variable("k"),
+                                new LambdaApp(
+                                    new Variable("k"),
+                                    new Variable("y")))))))),
+
+        // Recursion through LetRec, and a Let: (fact 10) / (y + 7)
+        new Program(
+            new LetRec(
+                new Variable("fact"),
+                new LambdaDef(
+                    new Variable("n"),
+                    new If(
+                        new IntComparison(
+                            new Variable("n"),
+                            new IntConstant(0)),
+                        new IntConstant(1),
+                        new IntArithmetic(
+                            Operation.MULT,
+                            new Variable("n"),
+                            new LambdaApp(
+                                new Variable("fact"),
+                                new IntArithmetic(
+                                    Operation.MINUS,
+                                    new Variable("n"),
+                                    new IntConstant(1)))))),
+                new Let(
+                    new Variable("d"),
+                    new IntArithmetic(
+                        Operation.PLUS,
+                        new Variable("y"),
+                        new IntConstant(7)),
+                    new IntArithmetic(
+                        Operation.DIV,
+                        new LambdaApp(
+                            new Variable("fact"),
+                            new IntConstant(10)),
+                        new Variable("d"))))),
+
+        // Closures made by the interpreter, calling and called by compiled
+        // ones: twice (\w. (inc w) * 2) y + escape k. twice (\w. k w) y,
+        // with inc and twice from the environment, is 18 + 3
+        new Program(
+            new IntArithmetic(
+                Operation.PLUS,
+                new LambdaApp(
+                    new LambdaApp(
+                        new Variable("twice"),
+                        new LambdaDef(
+                            new Variable("w"),
+                            new IntArithmetic(
+                                Operation.MULT,
+                                new LambdaApp(
+                                    new Variable("inc"),
+                                    new Variable("w")),
+                                new IntConstant(2)))),
+                    new Variable("y")),
+                new Escape(
+                    new Variable("k"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("twice"),
+                            new LambdaDef(
+                                new Variable("w"),
+                                new LambdaApp(
+                                    new Variable("k"),
+                                    new Variable("w")))),
+                        new Variable("y"))))),
+
+        // Escapes with values waiting on the stack below them:
+        // (\z. z + 1) (escape k. k y) + 2 * escape j. 10 + j 5 is 4 + 10
+        new Program(
+            new IntArithmetic(
+                Operation.PLUS,
+                new LambdaApp(
+                    new LambdaDef(
+                        new Variable("z"),
+                        new IntArithmetic(
+                            Operation.PLUS,
+                            new Variable("z"),
+                            new IntConstant(1))),
+                    new Escape(
+                        new Variable("k"),
+                        new LambdaApp(
+                            new Variable("k"),
+                            new Variable("y")))),
+                new IntArithmetic(
+                    Operation.MULT,
+                    new IntConstant(2),
+                    new Escape(
+                        new Variable("j"),
+                        new IntArithmetic(
+                            Operation.PLUS,
+                            new IntConstant(10),
+                            new LambdaApp(
+                                new Variable("j"),
+                                new IntConstant(5))))))),
+
+        // Expressions split into several methods, at the top and in a
+        // lambda, over a Let, an argument and the environment
+        new Program(
+            new IntArithmetic(
+                Operation.PLUS,
+                new Let(
+                    new Variable("a"),
+                    new IntArithmetic(
+                        Operation.PLUS,
+                        new Variable("y"),
+                        new IntConstant(1)),
+                    tree(8)),
+                new LambdaApp(
+                    new LambdaDef(
+                        new Variable("a"),
+                        tree(8)),
+                    new IntConstant(5)))),
+    };
+
+    Value inc = Interpreter.evaluate(
+        new Program(
+            new LambdaDef(
+                new Variable("x"),
+                new IntArithmetic(
+                    Operation.PLUS,
+                    new Variable("x"),
+                    new IntConstant(1)))),
+        Environment.EMPTY);
+    Value twice = Interpreter.evaluate(
+        new Program(
+            new LambdaDef(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("x"),
+                    new LambdaApp(
+                        new Variable("f"),
+                        new LambdaApp(
+                            new Variable("f"),
+                            new Variable("x")))))),
+        Environment.EMPTY);
+    // The same names bound in a list and in a hashed environment, where
+    // the program's own bindings are looked up by name as well
+    Environment[] envs = new Environment[2];
+    envs[0] = Environment.EMPTY;
+    envs[1] = Environment.HASHED;
+    for (int i = 0; i < envs.length; i++)
+      envs[i] = envs[i]
+          .bind(new Variable("y"), new IntValue(3))
+          .bind(new Variable("inc"), inc)
+          .bind(new Variable("twice"), twice);
+
+    int mismatches = 0;
+    for (Environment env : envs) {
+      for (Program p : programs) {
+        String expected = String.valueOf(Interpreter.evaluate(p, env, false));
+        String actual = String.valueOf(compile(p, env).run(env));
+
+        if (!expected.equals(actual))
+          mismatches++;
+        System.out.println((expected.equals(actual) ? "ok " : "MISMATCH ") + expected + " " + actual);
+      }
+    }
+
+    // Fails `ant check`
+    if (mismatches > 0)
+      throw new AssertionError(mismatches + " of " + envs.length * programs.length + " runs differ");
+  }
+
+  // A full binary tree of arithmetic over a and y under never-taken If
+  // guards, as in InterpreterBenchmark, too large for one method
+  static Expression tree(int depth) {
+    if (depth == 0)
+      return new IntArithmetic(Operation.MINUS, new Variable("a"), new Variable("y"));
+
+    return new If(
+        new IntComparison(
+            new Variable("y"),
+            new IntConstant(-1)),
+        new IntConstant(0),
+        new IntArithmetic(
+            depth % 2 == 0 ? Operation.PLUS : Operation.MULT,
+            tree(depth - 1),
+            tree(depth - 1)));
+  }
+
+}
+
+// A program variable in a JVM local of the method being generated
+class Local {
+  final Variable var;
+  final int slot;
+  final Local next;
+
+  public Local(Variable var, int slot, Local next) {
+    this.var = var;
+    this.slot = slot;
+    this.next = next;
+  }
+}
+
+class CompiledProgram {
+  final Program p;
+  // Null for a program that needs the interpreter. A thread that misses
+  // another's write only runs the compiled code once more.
+  GeneratedCode code;
+
+  public CompiledProgram(Program p, GeneratedCode code) {
+    this.p = p;
+    this.code = code;
+  }
+
+  // env must bind the same names, in the same order, as at compile time
+  Value run(Environment env) {
+    GeneratedCode code = this.code;
+    if (code != null) {
+      try {
+        return code.run(env);
+      } catch (ContinuationReentered | StackOverflowError e) {
+        this.code = null;
+      }
+    }
+    return Interpreter.evaluate(p, env, true);
+  }
+}
+
+
+// Generated code
+
+// The class generated for a program extends this
+abstract class GeneratedCode {
+  // The Variables the code looks up by name
+  final Variable[] names;
+
+  public GeneratedCode(Variable[] names) {
+    this.names = names;
+  }
+
+  abstract Value run(Environment env);
+
+  // Applies the program's lambda number lambda, closed over captured
+  abstract Value call(int lambda, Value[] captured, Value argument);
+}
+
+// Closures
+
+abstract class CLCompiled extends Closure {
+  public CLCompiled() {
+    super(CL_COMPILED);
+  }
+
+  abstract Value call(Value argument);
+}
+
+class CLGenerated extends CLCompiled {
+  final GeneratedCode code;
+  final int lambda;
+  final Value[] captured;
+
+  public CLGenerated(GeneratedCode code, int lambda, Value[] captured) {
+    this.code = code;
+    this.lambda = lambda;
+    this.captured = captured;
+  }
+
+  @Override
+  Value call(Value argument) {
+    return code.call(lambda, captured, argument);
+  }
+}
+
+class CLEscape extends CLCompiled {
+  boolean active = true;
+
+  @Override
+  Value call(Value argument) {
+    if (!active)
+      throw new ContinuationReentered();
+    throw new EscapeThrow(this, argument);
+  }
+}
+
+// Control transfer
+
+class EscapeThrow extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  final CLEscape target;
+  final Value value;
+
+  public EscapeThrow(CLEscape target, Value value) {
+    super(null, null, false, false);
+    this.target = target;
+    this.value = value;
+  }
+}
+
+class ContinuationReentered extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public ContinuationReentered() {
+    super(null, null, false, false);
+  }
+}
+
+class NotCompiled extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public NotCompiled() {
+    super(null, null, false, false);
+  }
+}
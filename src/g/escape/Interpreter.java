@@ -1,155 +1,726 @@
 package g.escape;
 
 
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
-import util.List;
+import util.Bindings;
+import util.Hamt;
+import util.Sink;
+import util.Symbol;
+import g.escape.IntArithmetic.Operation;
 
 public class Interpreter {
   
   static void interpret (Program p, Environment env) {
-    evaluate(p.e, env, new Cprint());
+    interpret(p, env, Sink.SYSTEM_OUT);
   }
   
-  static Continuation cont(Continuation c, Value v) {
-    if (c instanceof CArithInner) {
-      CArithInner k = (CArithInner) c;
-
-      IntValue op2 = (IntValue) v;
-      Value result;
-      switch (k.arith.op) {
-        case PLUS:
-          result = new IntValue(k.op1.javaInt + op2.javaInt);
-          break;
-        case MINUS:
-          result = new IntValue(k.op1.javaInt - op2.javaInt);
-          break;
-        case MULT:
-          result = new IntValue(k.op1.javaInt * op2.javaInt);
-          break;
-        case DIV:
-          result = new IntValue(k.op1.javaInt / op2.javaInt);
-          break;
-        default:
-          throw new Error();
-      }
-
-      return cont(k.c, result);
-    } else if (c instanceof CArithOuter) {
-      CArithOuter k = (CArithOuter) c;
-
-      IntValue op1 = (IntValue) v;
-      return evaluate(k.arith.operand2, k.env, new CArithInner(k.arith, op1, k.c));
-    } else if (c instanceof CComparisonOuter) {
-      CComparisonOuter k = (CComparisonOuter) c;
-      IntValue op1 = (IntValue) v;
-
-      return evaluate(k.intComp.operand2, k.env, new CComparisonInner(op1, k.c));
-    } else if (c instanceof CComparisonInner) {
-      CComparisonInner k = (CComparisonInner) c;
-
-      IntValue op2 = (IntValue) v;
-      return cont(k.c, new BoolValue(k.op1.javaInt == op2.javaInt));
-    } else if (c instanceof CIf) {
-      CIf k = (CIf) c;
-      BoolValue guard = (BoolValue) v;
-      if (guard.javaBool)
-        return evaluate(k.ifE.t, k.env, k.c);
-      else
-        return evaluate(k.ifE.f, k.env, k.c);
-    } else if (c instanceof CLambdaInner) {
-      CLambdaInner k = (CLambdaInner) c;
-      return apply(k.lambda.cl, v, k.c);
-    } else if (c instanceof CLambdaOuter) {
-      CLambdaOuter k = (CLambdaOuter) c;
+  static void interpret (Program p, Environment env, Sink out) {
+    interpret(p, env, false, out);
+  }
+  
+  static void interpret (Program p, Environment env, boolean flatClosures) {
+    interpret(p, env, flatClosures, Sink.SYSTEM_OUT);
+  }
+  
+  static void interpret (Program p, Environment env, boolean flatClosures, Sink out) {
+    out.println(evaluate(p, env, flatClosures));
+  }
+  
+  static Value evaluate (Program p, Environment env) {
+    return evaluate(p, env, false);
+  }
+  
+  static Value evaluate (Program p, Environment env, boolean flatClosures) {
+    return execute(flatClosures ? convert(p.e, env, null) : resolve(p.e, env), env);
+  }
+  
+  // e must already be resolved or converted against env
+  static Value execute (Expression e, Environment env) {
+    ContinuationStack k = new ContinuationStack();
+    k.push(ContinuationStack.HALT, null, null, 0);
+    return trampoline(evaluate(e, env, k), k);
+  }
+  
+  // Applies c to argument to completion, for compiled code's calls of
+  // closures it did not make
+  static Value call (Closure c, Value argument) {
+    ContinuationStack k = new ContinuationStack();
+    k.push(ContinuationStack.HALT, null, null, 0);
+    return trampoline(apply(c, argument, k), k);
+  }
+  
+  // Trampoline: evaluate and apply only descend into sub-expressions, so
+  // the Java stack is bounded by the depth of the AST. They push a frame
+  // on k for the rest of each compound expression, and return the value
+  // of the first operand that needs no frame; cont then pops the frame
+  // that value is for. Invoking an escape continuation reinstates the
+  // stack it captured. The program's value is the one that reaches HALT,
+  // the bottom frame.
+  static Value trampoline (Value v, ContinuationStack k) {
+    while (k.tag() != ContinuationStack.HALT)
+      v = cont(k, v);
+    return v;
+  }
+  
+  // Delivers v to the frame on top of k
+  static Value cont(ContinuationStack k, Value v) {
+    switch (k.tag()) {
+      case ContinuationStack.ARITH_INNER: {
+        IntArithmetic arith = (IntArithmetic) k.node();
+        int op1 = k.index();
+        k.pop();
+
+        IntValue op2 = (IntValue) v;
+        switch (arith.op) {
+          case PLUS:
+            return IntValue.valueOf(op1 + op2.javaInt);
+          case MINUS:
+            return IntValue.valueOf(op1 - op2.javaInt);
+          case MULT:
+            return IntValue.valueOf(op1 * op2.javaInt);
+          case DIV:
+            return IntValue.valueOf(op1 / op2.javaInt);
+          default:
+            throw new Error();
+        }
+      }
+      case ContinuationStack.ARITH_OUTER: {
+        IntArithmetic arith = (IntArithmetic) k.node();
+        Environment env = k.env();
+
+        int op1 = ((IntValue) v).javaInt;
+        k.replace(ContinuationStack.ARITH_INNER, arith, op1);
+        return evaluate(arith.operand2, env, k);
+      }
+      case ContinuationStack.COMPARISON_OUTER: {
+        IntComparison intComp = (IntComparison) k.node();
+        Environment env = k.env();
+        int op1 = ((IntValue) v).javaInt;
+
+        k.replace(ContinuationStack.COMPARISON_INNER, intComp, op1);
+        return evaluate(intComp.operand2, env, k);
+      }
+      case ContinuationStack.COMPARISON_INNER: {
+        int op1 = k.index();
+        k.pop();
+
+        IntValue op2 = (IntValue) v;
+        return BoolValue.valueOf(op1 == op2.javaInt);
+      }
+      case ContinuationStack.IF: {
+        If ifE = (If) k.node();
+        Environment env = k.env();
+        k.pop();
+        BoolValue guard = (BoolValue) v;
+        if (guard.javaBool)
+          return evaluate(ifE.t, env, k);
+        else
+          return evaluate(ifE.f, env, k);
+      }
+      case ContinuationStack.LAMBDA_INNER: {
+        LambdaValue lambda = (LambdaValue) k.node();
+        k.pop();
+        return apply(lambda.cl, v, k);
+      }
+      case ContinuationStack.LAMBDA_OUTER: {
+        LambdaApp lambdaApp = (LambdaApp) k.node();
+        Environment env = k.env();
         
-      LambdaValue lambda = (LambdaValue) v;
-      return evaluate(k.lambdaApp.argument, k.env, new CLambdaInner(lambda, k.c));
-    } else if (c instanceof Cprint) {
-      System.out.println(v);
-      return null;
-    } else if (c instanceof CSeq) {
-      CSeq k = (CSeq) c;
-      return evaluate(new Seq(k.left), k.env, k.c);
+        k.replace(ContinuationStack.LAMBDA_INNER, v, 0);
+        return evaluate(lambdaApp.argument, env, k);
+      }
+      case ContinuationStack.SEQ: {
+        Expression[] expressions = (Expression[]) k.node();
+        Environment env = k.env();
+        int next = k.index();
+        k.pop();
+        return evaluateSeq(expressions, next, env, k);
+      }
+      case ContinuationStack.RESET: {
+        k.pop();
+        return v;
+      }
+      case ContinuationStack.LET: {
+        Let let = (Let) k.node();
+        Environment env = k.env();
+        k.pop();
+        return evaluate(let.body, env.bind(let.var, v), k);
+      }
     }
 
     throw new Error();
   }
   
-  static Continuation apply (Closure c, Value argument, Continuation k) {
-    if (c instanceof CL1) {
-      CL1 cl1 = (CL1) c;
+  static Value apply (Closure c, Value argument, ContinuationStack k) {
+    switch (c.tag) {
+      case Closure.CL1: {
+        CL1 cl1 = (CL1) c;
 
-      Environment newEnv = cl1.env.bind(cl1.lambdaDef.formalArgument, argument);
+        Environment newEnv = cl1.env.bind(cl1.lambdaDef.formalArgument, argument);
 
-      return evaluate(cl1.lambdaDef.body, newEnv, k);
-    } else if (c instanceof CL2) {
-      CL2 cl2 = (CL2) c;
-      return cont(cl2.c, argument);
+        return evaluate(cl1.lambdaDef.body, newEnv, k);
+      }
+      case Closure.CL_FLAT: {
+        CLFlat flat = (CLFlat) c;
+
+        Environment newEnv = Environment.flat(flat.captured).bind(flat.lambdaDef.formalArgument, argument);
+
+        return evaluate(flat.lambdaDef.body, newEnv, k);
+      }
+      case Closure.CL2: {
+        CL2 cl2 = (CL2) c;
+        k.reinstate(cl2);
+        return argument;
+      }
+      case Closure.CL_DELIMITED: {
+        CLDelimited delimited = (CLDelimited) c;
+        k.resume(delimited);
+        return argument;
+      }
+      case Closure.CL_COMPILED: {
+        // Runs on the Java stack, and returns to the frame on top of k
+        return ((CLCompiled) c).call(argument);
+      }
     }
     
     throw new Error();
   }
   
-  static Continuation evaluate (Expression e, final Environment env, final Continuation c) {
-    if (e instanceof IntConstant) {
-      IntConstant intE = (IntConstant) e;
+  // Constant folding: arithmetic and comparisons over constants, Ifs with
+  // constant guards and lambdas applied to constants are reduced once,
+  // before the program runs. Anything that could fail at run time is kept.
+  static Expression fold (Expression e) {
+    if (e instanceof IntConstant || e instanceof BoolConstant || e instanceof Variable) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+      Expression op1 = fold(arith.operand1);
+      Expression op2 = fold(arith.operand2);
+
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant) {
+        int i1 = ((IntConstant) op1).javaInt;
+        int i2 = ((IntConstant) op2).javaInt;
+        switch (arith.op) {
+          case PLUS:
+            return new IntConstant(i1 + i2);
+          case MINUS:
+            return new IntConstant(i1 - i2);
+          case MULT:
+            return new IntConstant(i1 * i2);
+          case DIV:
+            if (i2 != 0)
+              return new IntConstant(i1 / i2);
+            break;
+          default:
+            throw new Error();
+        }
+      }
 
-      return cont(c, new IntValue(intE.javaInt));
-    } else if (e instanceof BoolConstant) {
-      BoolConstant boolE = (BoolConstant) e;
+      return new IntArithmetic(arith.op, op1, op2);
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+      Expression op1 = fold(intComp.operand1);
+      Expression op2 = fold(intComp.operand2);
+
+      if (op1 instanceof IntConstant && op2 instanceof IntConstant)
+        return new BoolConstant(((IntConstant) op1).javaInt == ((IntConstant) op2).javaInt);
+
+      return new IntComparison(op1, op2);
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+      Expression guard = fold(ifE.guard);
+
+      if (guard instanceof BoolConstant)
+        return fold(((BoolConstant) guard).javaBool ? ifE.t : ifE.f);
+
+      return new If(guard, fold(ifE.t), fold(ifE.f));
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument, fold(lambdaDef.body));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+      Expression lambda = fold(lambdaApp.lambda);
+      Expression argument = fold(lambdaApp.argument);
+
+      // A constant argument has no effects to lose and no names to capture
+      if (lambda instanceof LambdaDef
+          && (argument instanceof IntConstant || argument instanceof BoolConstant)) {
+        LambdaDef lambdaDef = (LambdaDef) lambda;
+
+        return fold(substitute(lambdaDef.body, lambdaDef.formalArgument, argument));
+      }
+
+      return new LambdaApp(lambda, argument);
+    } else if (e instanceof Escape) {
+      Escape escape = (Escape) e;
+
+      return new Escape(escape.formalArgument, fold(escape.body));
+    } else if (e instanceof Reset) {
+      return new Reset(fold(((Reset) e).body));
+    } else if (e instanceof Shift) {
+      Shift shift = (Shift) e;
+
+      return new Shift(shift.formalArgument, fold(shift.body));
+    } else if (e instanceof Let) {
+      Let let = (Let) e;
+      Expression value = fold(let.value);
 
-      return cont(c, new BoolValue(boolE.javaBool));
+      // Bound to a constant, the Let goes the way of a lambda applied to one
+      if (value instanceof IntConstant || value instanceof BoolConstant)
+        return fold(substitute(let.body, let.var, value));
+
+      return new Let(let.var, value, fold(let.body));
+    } else if (e instanceof LetRec) {
+      LetRec letRec = (LetRec) e;
+
+      return new LetRec(letRec.var, fold(letRec.lambda), fold(letRec.body));
+    } else if (e instanceof Seq) {
+      Seq seq = (Seq) e;
+
+      // Only the last expression's value is used, so earlier values are dropped
+      ArrayList<Expression> expressions = new ArrayList<>();
+      for (int i = 0; i < seq.expressions.length; i++) {
+        Expression folded = fold(seq.expressions[i]);
+        if (i == seq.expressions.length - 1 || !(folded instanceof IntConstant
+            || folded instanceof BoolConstant || folded instanceof LambdaDef))
+          expressions.add(folded);
+      }
+
+      if (expressions.size() == 1)
+        return expressions.get(0);
+      return new Seq(expressions.toArray(new Expression[expressions.size()]));
+    }
+
+    throw new Error();
+  }
+  
+  // Replaces the free occurrences of var in e with a constant
+  static Expression substitute (Expression e, Variable var, Expression constant) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
     } else if (e instanceof IntArithmetic) {
-      final IntArithmetic arith = (IntArithmetic) e;
+      IntArithmetic arith = (IntArithmetic) e;
 
-      return evaluate(arith.operand1, env, new CArithOuter(arith, c, env));
-        
+      return new IntArithmetic(arith.op,
+          substitute(arith.operand1, var, constant),
+          substitute(arith.operand2, var, constant));
     } else if (e instanceof IntComparison) {
       IntComparison intComp = (IntComparison) e;
-      
-      return evaluate(intComp.operand1, env, new CComparisonOuter(intComp, c, env));
+
+      return new IntComparison(
+          substitute(intComp.operand1, var, constant),
+          substitute(intComp.operand2, var, constant));
     } else if (e instanceof If) {
-      final If ifE = (If) e;
-      
-      return evaluate(ifE.guard, env, new CIf(ifE, c, env));
-      
+      If ifE = (If) e;
+
+      return new If(
+          substitute(ifE.guard, var, constant),
+          substitute(ifE.t, var, constant),
+          substitute(ifE.f, var, constant));
     } else if (e instanceof Variable) {
       Variable v = (Variable) e;
-      
-      return cont(c, env.lookup(v));
+
+      return v.symbol == var.symbol ? constant : v;
     } else if (e instanceof LambdaDef) {
       LambdaDef lambdaDef = (LambdaDef) e;
-      
-      return cont(c, new LambdaValue(new CL1(lambdaDef, env)));
+
+      if (lambdaDef.formalArgument.symbol == var.symbol)
+        return e;
+      return new LambdaDef(lambdaDef.formalArgument,
+          substitute(lambdaDef.body, var, constant));
     } else if (e instanceof LambdaApp) {
       LambdaApp lambdaApp = (LambdaApp) e;
 
-      return evaluate(lambdaApp.lambda, env, new CLambdaOuter(lambdaApp, c, env));
+      return new LambdaApp(
+          substitute(lambdaApp.lambda, var, constant),
+          substitute(lambdaApp.argument, var, constant));
     } else if (e instanceof Escape) {
       Escape escape = (Escape) e;
-      
-      Environment newEnv = env.bind(escape.formalArgument, new LambdaValue(new CL2(c)));
-      
-      return evaluate(escape.body, newEnv, c);
+
+      if (escape.formalArgument.symbol == var.symbol)
+        return e;
+      return new Escape(escape.formalArgument,
+          substitute(escape.body, var, constant));
+    } else if (e instanceof Reset) {
+      return new Reset(substitute(((Reset) e).body, var, constant));
+    } else if (e instanceof Shift) {
+      Shift shift = (Shift) e;
+
+      if (shift.formalArgument.symbol == var.symbol)
+        return e;
+      return new Shift(shift.formalArgument,
+          substitute(shift.body, var, constant));
+    } else if (e instanceof Let) {
+      Let let = (Let) e;
+
+      return new Let(let.var,
+          substitute(let.value, var, constant),
+          let.var.symbol == var.symbol ? let.body : substitute(let.body, var, constant));
+    } else if (e instanceof LetRec) {
+      LetRec letRec = (LetRec) e;
+
+      if (letRec.var.symbol == var.symbol)
+        return e;
+      return new LetRec(letRec.var,
+          substitute(letRec.lambda, var, constant),
+          substitute(letRec.body, var, constant));
     } else if (e instanceof Seq) {
       Seq seq = (Seq) e;
+
+      Expression[] expressions = new Expression[seq.expressions.length];
+      for (int i = 0; i < expressions.length; i++)
+        expressions[i] = substitute(seq.expressions[i], var, constant);
+      return new Seq(expressions);
+    }
+
+    throw new Error();
+  }
+  
+  // Lexical addressing: every Variable bound in scope is replaced by its
+  // depth in the environment, so evaluation never compares names.
+  static Expression resolve (Expression e, Environment scope) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+
+      return new IntArithmetic(arith.op,
+          resolve(arith.operand1, scope),
+          resolve(arith.operand2, scope));
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+
+      return new IntComparison(
+          resolve(intComp.operand1, scope),
+          resolve(intComp.operand2, scope));
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+
+      return new If(
+          resolve(ifE.guard, scope),
+          resolve(ifE.t, scope),
+          resolve(ifE.f, scope));
+    } else if (e instanceof Variable) {
+      Variable v = (Variable) e;
+      int depth = scope.depth(v);
+
+      // Unbound variables are left alone and fail when evaluated
+      return depth < 0 ? v : new LexicalVariable(v, depth);
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      return new LambdaDef(lambdaDef.formalArgument,
+          resolve(lambdaDef.body, scope.bind(lambdaDef.formalArgument, null)));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          resolve(lambdaApp.lambda, scope),
+          resolve(lambdaApp.argument, scope));
+    } else if (e instanceof Escape) {
+      Escape escape = (Escape) e;
+
+      return new Escape(escape.formalArgument,
+          resolve(escape.body, scope.bind(escape.formalArgument, null)));
+    } else if (e instanceof Reset) {
+      return new Reset(resolve(((Reset) e).body, scope));
+    } else if (e instanceof Shift) {
+      Shift shift = (Shift) e;
+
+      return new Shift(shift.formalArgument,
+          resolve(shift.body, scope.bind(shift.formalArgument, null)));
+    } else if (e instanceof Let) {
+      Let let = (Let) e;
+
+      return new Let(let.var,
+          resolve(let.value, scope),
+          resolve(let.body, scope.bind(let.var, null)));
+    } else if (e instanceof LetRec) {
+      LetRec letRec = (LetRec) e;
+
+      // The lambda is in its own scope
+      Environment inner = scope.bind(letRec.var, null);
+      return new LetRec(letRec.var,
+          resolve(letRec.lambda, inner),
+          resolve(letRec.body, inner));
+    } else if (e instanceof Seq) {
+      Seq seq = (Seq) e;
+
+      Expression[] expressions = new Expression[seq.expressions.length];
+      for (int i = 0; i < expressions.length; i++)
+        expressions[i] = resolve(seq.expressions[i], scope);
+      return new Seq(expressions);
+    }
+
+    throw new Error();
+  }
+  
+  // Closure conversion: like resolve, but every LambdaDef becomes a
+  // FlatLambdaDef whose closures copy only its free variables, so a closure
+  // neither retains nor walks the environment it was defined in.
+  static Expression convert (Expression e, Environment locals, ClosureScope scope) {
+    if (e instanceof IntConstant || e instanceof BoolConstant) {
+      return e;
+    } else if (e instanceof IntArithmetic) {
+      IntArithmetic arith = (IntArithmetic) e;
+
+      return new IntArithmetic(arith.op,
+          convert(arith.operand1, locals, scope),
+          convert(arith.operand2, locals, scope));
+    } else if (e instanceof IntComparison) {
+      IntComparison intComp = (IntComparison) e;
+
+      return new IntComparison(
+          convert(intComp.operand1, locals, scope),
+          convert(intComp.operand2, locals, scope));
+    } else if (e instanceof If) {
+      If ifE = (If) e;
+
+      return new If(
+          convert(ifE.guard, locals, scope),
+          convert(ifE.t, locals, scope),
+          convert(ifE.f, locals, scope));
+    } else if (e instanceof Variable) {
+      return address((Variable) e, locals, scope);
+    } else if (e instanceof LambdaDef) {
+      LambdaDef lambdaDef = (LambdaDef) e;
+
+      ClosureScope inner = new ClosureScope(locals, scope);
+      Expression body = convert(lambdaDef.body,
+          Environment.EMPTY.bind(lambdaDef.formalArgument, null), inner);
+
+      return new FlatLambdaDef(lambdaDef.formalArgument, body,
+          inner.addresses.toArray(new Expression[inner.addresses.size()]));
+    } else if (e instanceof LambdaApp) {
+      LambdaApp lambdaApp = (LambdaApp) e;
+
+      return new LambdaApp(
+          convert(lambdaApp.lambda, locals, scope),
+          convert(lambdaApp.argument, locals, scope));
+    } else if (e instanceof Escape) {
+      Escape escape = (Escape) e;
+
+      return new Escape(escape.formalArgument,
+          convert(escape.body, locals.bind(escape.formalArgument, null), scope));
+    } else if (e instanceof Reset) {
+      return new Reset(convert(((Reset) e).body, locals, scope));
+    } else if (e instanceof Shift) {
+      Shift shift = (Shift) e;
+
+      return new Shift(shift.formalArgument,
+          convert(shift.body, locals.bind(shift.formalArgument, null), scope));
+    } else if (e instanceof Let) {
+      Let let = (Let) e;
+
+      return new Let(let.var,
+          convert(let.value, locals, scope),
+          convert(let.body, locals.bind(let.var, null), scope));
+    } else if (e instanceof LetRec) {
+      LetRec letRec = (LetRec) e;
+
+      // The lambda captures its own name like any other local
+      Environment inner = locals.bind(letRec.var, null);
+      return new LetRec(letRec.var,
+          convert(letRec.lambda, inner, scope),
+          convert(letRec.body, inner, scope));
+    } else if (e instanceof Seq) {
+      Seq seq = (Seq) e;
+
+      Expression[] expressions = new Expression[seq.expressions.length];
+      for (int i = 0; i < expressions.length; i++)
+        expressions[i] = convert(seq.expressions[i], locals, scope);
+      return new Seq(expressions);
+    }
+
+    throw new Error();
+  }
+  
+  // Where v lives when the innermost lambda has the given locals: a local
+  // frame, a captured slot, or nowhere (left as an unbound Variable).
+  static Expression address (Variable v, Environment locals, ClosureScope scope) {
+    int depth = locals.depth(v);
+    if (depth >= 0)
+      return new LexicalVariable(v, depth);
+    else if (scope == null)
+      return v;
+    else
+      return scope.capture(v);
+  }
+  
+  static Value load (Expression address, Environment env) {
+    if (address instanceof LexicalVariable)
+      return env.lookup(((LexicalVariable) address).depth);
+    else if (address instanceof Variable)
+      return env.lookup((Variable) address);
+    else
+      return env.captured(((CapturedVariable) address).index);
+  }
+  
+  static Value evaluate (Expression e, final Environment env, final ContinuationStack k) {
+    switch (e.tag) {
+      case Expression.INT_CONSTANT: {
+        IntConstant intE = (IntConstant) e;
+
+        return IntValue.valueOf(intE.javaInt);
+      }
+      case Expression.BOOL_CONSTANT: {
+        BoolConstant boolE = (BoolConstant) e;
+
+        return BoolValue.valueOf(boolE.javaBool);
+      }
+      case Expression.INT_ARITHMETIC: {
+        final IntArithmetic arith = (IntArithmetic) e;
+
+        k.push(ContinuationStack.ARITH_OUTER, arith, env, 0);
+        return evaluate(arith.operand1, env, k);
+      }
+      case Expression.INT_COMPARISON: {
+        IntComparison intComp = (IntComparison) e;
+      
+        k.push(ContinuationStack.COMPARISON_OUTER, intComp, env, 0);
+        return evaluate(intComp.operand1, env, k);
+      }
+      case Expression.IF: {
+        final If ifE = (If) e;
       
-      if (seq.expressions.length == 0) {
-        return cont(c, null);
-      } else if (seq.expressions.length > 1) {
-        Expression[] left = new Expression[seq.expressions.length - 1];
-        System.arraycopy(seq.expressions, 1, left, 0, left.length);
-        return evaluate(seq.expressions[0], env, new CSeq(left, c, env));
-      } else {
-        return evaluate(seq.expressions[0], env, c);
+        k.push(ContinuationStack.IF, ifE, env, 0);
+        return evaluate(ifE.guard, env, k);
       }
+      case Expression.LEXICAL_VARIABLE: {
+        LexicalVariable lv = (LexicalVariable) e;
       
+        return env.lookup(lv.depth);
+      }
+      case Expression.CAPTURED_VARIABLE: {
+        CapturedVariable cv = (CapturedVariable) e;
+      
+        return env.captured(cv.index);
+      }
+      case Expression.VARIABLE: {
+        Variable v = (Variable) e;
+      
+        return env.lookup(v);
+      }
+      case Expression.LAMBDA_DEF: {
+        LambdaDef lambdaDef = (LambdaDef) e;
+      
+        return new LambdaValue(new CL1(lambdaDef, env));
+      }
+      case Expression.FLAT_LAMBDA_DEF: {
+        FlatLambdaDef lambdaDef = (FlatLambdaDef) e;
+      
+        Value[] captured = new Value[lambdaDef.captures.length];
+        for (int i = 0; i < captured.length; i++)
+          captured[i] = load(lambdaDef.captures[i], env);
+      
+        return new LambdaValue(new CLFlat(lambdaDef, captured));
+      }
+      case Expression.LAMBDA_APP: {
+        LambdaApp lambdaApp = (LambdaApp) e;
+
+        // A lambda that is a variable or a LambdaDef is evaluated on the spot,
+        // so the call needs only the frame that applies it
+        if (immediate(lambdaApp.lambda)) {
+          k.push(ContinuationStack.LAMBDA_INNER, evaluate(lambdaApp.lambda, env, k), null, 0);
+          return evaluate(lambdaApp.argument, env, k);
+        }
+
+        k.push(ContinuationStack.LAMBDA_OUTER, lambdaApp, env, 0);
+        return evaluate(lambdaApp.lambda, env, k);
+      }
+      case Expression.ESCAPE: {
+        Escape escape = (Escape) e;
+      
+        Environment newEnv = env.bind(escape.formalArgument, new LambdaValue(k.capture()));
+      
+        return evaluate(escape.body, newEnv, k);
+      }
+      case Expression.RESET: {
+        Reset reset = (Reset) e;
+      
+        k.push(ContinuationStack.RESET, null, null, 0);
+        return evaluate(reset.body, env, k);
+      }
+      case Expression.SHIFT: {
+        Shift shift = (Shift) e;
+      
+        Environment newEnv = env.bind(shift.formalArgument, new LambdaValue(k.shift()));
+      
+        return evaluate(shift.body, newEnv, k);
+      }
+      case Expression.LET: {
+        Let let = (Let) e;
+
+        if (immediate(let.value))
+          return evaluate(let.body, env.bind(let.var, evaluate(let.value, env, k)), k);
+
+        k.push(ContinuationStack.LET, let, env, 0);
+        return evaluate(let.value, env, k);
+      }
+      case Expression.LET_REC: {
+        LetRec letRec = (LetRec) e;
+
+        // The closure is bound before it is complete, and then completed
+        // from the environment that binds it: a CL1 is given that
+        // environment, and a CLFlat loads its captures from it, its own
+        // name among them. Each call then costs one binding, as for any
+        // other closure.
+        Environment newEnv;
+        if (letRec.lambda.tag == Expression.LAMBDA_DEF) {
+          CL1 cl1 = new CL1((LambdaDef) letRec.lambda, null);
+          newEnv = env.bind(letRec.var, new LambdaValue(cl1));
+          cl1.env = newEnv;
+        } else {
+          FlatLambdaDef lambdaDef = (FlatLambdaDef) letRec.lambda;
+          Value[] captured = new Value[lambdaDef.captures.length];
+          newEnv = env.bind(letRec.var, new LambdaValue(new CLFlat(lambdaDef, captured)));
+          for (int i = 0; i < captured.length; i++)
+            captured[i] = load(lambdaDef.captures[i], newEnv);
+        }
+
+        return evaluate(letRec.body, newEnv, k);
+      }
+      case Expression.SEQ: {
+        Seq seq = (Seq) e;
+      
+        if (seq.expressions.length == 0)
+          return null;
+        else
+          return evaluateSeq(seq.expressions, 0, env, k);
+      }
     }
     
     throw new Error();
   }
 
+  // Whether evaluate returns e's value without touching the stack
+  static boolean immediate (Expression e) {
+    switch (e.tag) {
+      case Expression.INT_CONSTANT:
+      case Expression.BOOL_CONSTANT:
+      case Expression.LEXICAL_VARIABLE:
+      case Expression.CAPTURED_VARIABLE:
+      case Expression.VARIABLE:
+      case Expression.LAMBDA_DEF:
+      case Expression.FLAT_LAMBDA_DEF:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Evaluates expressions[i..] in order, sharing the Seq's array; the last
+  // one is evaluated directly in k
+  static Value evaluateSeq (Expression[] expressions, int i, Environment env, ContinuationStack k) {
+    if (i == expressions.length - 1)
+      return evaluate(expressions[i], env, k);
+    k.push(ContinuationStack.SEQ, expressions, env, i + 1);
+    return evaluate(expressions[i], env, k);
+  }
+
   public static void main(String[] args) {
     interpret (new Program(
         new Seq(new Expression[] {
@@ -165,183 +736,542 @@ public class Interpreter {
                 }))
         })),
         Environment.EMPTY);
+
+    // Escaping from deep recursion is a single step of the trampoline:
+    // down(n) = if n == 0 then esc(42) else 1 + down(n - 1)
+    Expression zHalf =
+        new LambdaDef(
+            new Variable("x"),
+            new LambdaApp(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("v"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("x"),
+                            new Variable("x")),
+                        new Variable("v")))));
+    interpret (new Program(
+        new Escape(
+            new Variable("esc"),
+            new LambdaApp(
+                new LambdaApp(
+                    new LambdaDef(
+                        new Variable("f"),
+                        new LambdaApp(zHalf, zHalf)),
+                    new LambdaDef(
+                        new Variable("down"),
+                        new LambdaDef(
+                            new Variable("n"),
+                            new If(
+                                new IntComparison(
+                                    new Variable("n"),
+                                    new IntConstant(0)),
+                                new LambdaApp(
+                                    new Variable("esc"),
+                                    new IntConstant(42)),
+                                new IntArithmetic(
+                                    Operation.PLUS,
+                                    new IntConstant(1),
+                                    new LambdaApp(
+                                        new Variable("down"),
+                                        new IntArithmetic(
+                                            Operation.MINUS,
+                                            new Variable("n"),
+                                            new IntConstant(1)))))))),
+                new IntConstant(50000)))),
+        Environment.EMPTY);
+
+    // A generator: walk yields n, n - 1, ..., 1 by shifting to the consumer
+    // its own continuation, which is only the frames up to the Reset. The
+    // consumer adds each value up and resumes walk, in constant stack.
+    //   ((reset (seq (walk 10000) (\acc. acc))) 0)
+    //   walk(n) = if n == 0 then 0
+    //             else seq (shift k. \acc. (k 0) (acc + n)) (walk (n - 1))
+    interpret (new Program(
+        new LambdaApp(
+            new Reset(
+                new Seq(
+                    new LambdaApp(
+                        new LambdaApp(
+                            new LambdaDef(
+                                new Variable("f"),
+                                new LambdaApp(zHalf, zHalf)),
+                            new LambdaDef(
+                                new Variable("walk"),
+                                new LambdaDef(
+                                    new Variable("n"),
+                                    new If(
+                                        new IntComparison(
+                                            new Variable("n"),
+                                            new IntConstant(0)),
+                                        new IntConstant(0),
+                                        new Seq(
+                                            new Shift(
+                                                new Variable("k"),
+                                                new LambdaDef(
+                                                    new Variable("acc"),
+                                                    new LambdaApp(
+                                                        new LambdaApp(
+                                                            new Variable("k"),
+                                                            new IntConstant(0)),
+                                                        new IntArithmetic(
+                                                            Operation.PLUS,
+                                                            new Variable("acc"),
+                                                            new Variable("n"))))),
+                                            new LambdaApp(
+                                                new Variable("walk"),
+                                                new IntArithmetic(
+                                                    Operation.MINUS,
+                                                    new Variable("n"),
+                                                    new IntConstant(1)))))))),
+                        new IntConstant(10000)),
+                    new LambdaDef(
+                        new Variable("acc"),
+                        new Variable("acc")))),
+            new IntConstant(0))),
+        Environment.EMPTY);
+
+    // Recursion without Z: fact's closure binds fact itself
+    //   letrec fact = \n. if n == 0 then 1 else n * fact (n - 1)
+    //   in let m = fact 10 in m / 10
+    Program factorial = new Program(
+        new LetRec(
+            new Variable("fact"),
+            new LambdaDef(
+                new Variable("n"),
+                new If(
+                    new IntComparison(
+                        new Variable("n"),
+                        new IntConstant(0)),
+                    new IntConstant(1),
+                    new IntArithmetic(
+                        Operation.MULT,
+                        new Variable("n"),
+                        new LambdaApp(
+                            new Variable("fact"),
+                            new IntArithmetic(
+                                Operation.MINUS,
+                                new Variable("n"),
+                                new IntConstant(1)))))),
+            new Let(
+                new Variable("m"),
+                new LambdaApp(
+                    new Variable("fact"),
+                    new IntConstant(10)),
+                new IntArithmetic(
+                    Operation.DIV,
+                    new Variable("m"),
+                    new IntConstant(10)))));
+    for (boolean flatClosures : new boolean[] { false, true })
+      interpret (factorial, Environment.EMPTY, flatClosures);
+
+    // Flat closures capture only their free variables
+    interpret (new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaDef(
+                    new Variable("x"),
+                    new LambdaDef(
+                        new Variable("y"),
+                        new IntArithmetic(
+                            Operation.MINUS,
+                            new Variable("x"),
+                            new Variable("y")))),
+                new IntConstant(10)),
+            new IntConstant(3))),
+        Environment.EMPTY.bind(new Variable("z"), new IntValue(0)),
+        true);
+
+    // The same program in a hashed environment, where the closure captures
+    // g by name
+    Environment hashed = Environment.HASHED
+        .bind(new Variable("g"), new IntValue(10))
+        .bind(new Variable("h"), new IntValue(3));
+    for (boolean flatClosures : new boolean[] { false, true })
+      interpret (new Program(
+          new LambdaApp(
+              new LambdaDef(
+                  new Variable("w"),
+                  new IntArithmetic(
+                      Operation.MINUS,
+                      new Variable("g"),
+                      new Variable("w"))),
+              new Variable("h"))),
+          hashed,
+          flatClosures);
   }
 
 }
 
 // Continuations
 
-class Continuation {
-}
+// The continuation of the running program, as a stack of frames: one per
+// compound expression waiting for a value, with the frame for HALT at the
+// bottom. Each frame is a tag, the node it belongs to (or a value or the
+// Seq's array), an environment and an int, kept in parallel arrays, so
+// pushing and popping allocate nothing. The arrays come in Segments, each
+// continuing the first belowSp frames of the Segment below it, and only
+// the top Segment is written.
+//
+// Escape captures the stack by freezing its Segments and keeping the top
+// one and sp in a CL2; nothing is copied. A push onto a frozen Segment,
+// whether from the stack that was captured or from one that reinstated
+// it, starts a new Segment above it instead of writing into it, so a CL2
+// can be reinstated any number of times. Programs that never escape never
+// split a Segment.
+//
+// Reset pushes a RESET frame, and Shift cuts the stack back to the nearest
+// one, copying the frames it removes. A delimited continuation is only
+// those frames, however deep the stack below the Reset.
+class ContinuationStack {
+  static final int ARITH_INNER = 0;
+  static final int ARITH_OUTER = 1;
+  static final int COMPARISON_INNER = 2;
+  static final int COMPARISON_OUTER = 3;
+  static final int IF = 4;
+  static final int LAMBDA_OUTER = 5;
+  static final int LAMBDA_INNER = 6;
+  static final int HALT = 7;
+  static final int SEQ = 8;
+  static final int RESET = 9;
+  static final int LET = 10;
+
+  // The top frame is top's sp - 1
+  Segment top = new Segment(null, 0, Segment.MIN);
+  int sp;
+  // The last Segment popped off the stack, kept to be pushed again
+  Segment spare;
+
+  int tag() {
+    return top.tags[sp - 1];
+  }
 
-class CArithInner extends Continuation {
-  final IntArithmetic arith;
-  final IntValue op1;
-  final Continuation c;
+  Object node() {
+    return top.nodes[sp - 1];
+  }
 
-  public CArithInner(IntArithmetic arith, IntValue op1, Continuation c) {
-    this.arith = arith;
-    this.op1 = op1;
-    this.c = c;
+  Environment env() {
+    return top.envs[sp - 1];
   }
-}
 
-class CArithOuter extends Continuation {
-  final IntArithmetic arith;
-  final Continuation c;
-  final Environment env;
+  int index() {
+    return top.indices[sp - 1];
+  }
 
-  public CArithOuter(IntArithmetic arith, Continuation c, Environment env) {
-    this.arith = arith;
-    this.c = c;
-    this.env = env;
+  void push(int tag, Object node, Environment env, int index) {
+    Segment s = top;
+    if (sp == s.tags.length || s.frozen) {
+      if (spare != null && spare.below == s && spare.belowSp == sp)
+        s = spare;
+      else
+        s = new Segment(s, sp, sp < s.tags.length ? Segment.MIN : Math.min(2 * sp, Segment.MAX));
+      spare = null;
+      top = s;
+      sp = 0;
+    }
+    s.tags[sp] = tag;
+    s.nodes[sp] = node;
+    s.envs[sp] = env;
+    s.indices[sp] = index;
+    sp++;
   }
-}
 
-class CComparisonInner extends Continuation {
-  final IntValue op1;
-  final Continuation c;
+  // Turns the top frame into the next one for the same expression. Its
+  // environment is left in place, unused
+  void replace(int tag, Object node, int index) {
+    Segment s = top;
+    if (s.frozen) {
+      pop();
+      push(tag, node, null, index);
+    } else {
+      s.tags[sp - 1] = tag;
+      if (s.nodes[sp - 1] != node)
+        s.nodes[sp - 1] = node;
+      s.indices[sp - 1] = index;
+    }
+  }
 
-  public CComparisonInner(IntValue op1, Continuation c) {
-    this.op1 = op1;
-    this.c = c;
+  // Popped frames are not cleared: the stack lives for one execute call,
+  // and a frozen Segment may not be written
+  void pop() {
+    if (--sp == 0 && top.below != null) {
+      if (!top.frozen)
+        spare = top;
+      sp = top.belowSp;
+      top = top.below;
+    }
   }
-}
 
-class CComparisonOuter extends Continuation {
-  final IntComparison intComp;
-  final Continuation c;
-  final Environment env;
+  // Freezing stops at the first frozen Segment: everything below a frozen
+  // Segment was frozen with it
+  CL2 capture() {
+    for (Segment s = top; s != null && !s.frozen; s = s.below)
+      s.frozen = true;
+    return new CL2(top, sp);
+  }
 
-  public CComparisonOuter(IntComparison intComp, Continuation c, Environment env) {
-    this.intComp = intComp;
-    this.c = c;
-    this.env = env;
+  void reinstate(CL2 cl2) {
+    top = cl2.top;
+    sp = cl2.sp;
   }
-}
 
-class CIf extends Continuation {
-  final If ifE;
-  final Environment env;
-  final Continuation c;
+  // Removes the frames above the nearest RESET, or HALT if there is none,
+  // and returns a copy of them. The copy holds only those frames, so a
+  // delimited continuation retains nothing of the stack below its Reset.
+  CLDelimited shift() {
+    int n = 0;
+    Segment s = top;
+    int i = sp;
+    while (s.tags[i - 1] != RESET && s.tags[i - 1] != HALT) {
+      n++;
+      if (--i == 0) {
+        i = s.belowSp;
+        s = s.below;
+      }
+    }
 
-  public CIf(If ifE, Continuation c, Environment env) {
-    this.ifE = ifE;
-    this.c = c;
-    this.env = env;
+    CLDelimited slice = new CLDelimited(n);
+    while (n > 0) {
+      n--;
+      slice.tags[n] = top.tags[sp - 1];
+      slice.nodes[n] = top.nodes[sp - 1];
+      slice.envs[n] = top.envs[sp - 1];
+      slice.indices[n] = top.indices[sp - 1];
+      pop();
+    }
+    return slice;
   }
-}
 
-class CLambdaOuter extends Continuation {
-  final LambdaApp lambdaApp;
-  final Continuation c;
-  final Environment env;
-  
-  public CLambdaOuter(LambdaApp lambdaApp, Continuation c, Environment env) {
-    this.lambdaApp = lambdaApp;
-    this.c = c;
-    this.env = env;
+  // Pushes a Reset and then the slice, so the value the slice produces
+  // comes back to the caller of the continuation
+  void resume(CLDelimited slice) {
+    push(RESET, null, null, 0);
+    for (int i = 0; i < slice.tags.length; i++)
+      push(slice.tags[i], slice.nodes[i], slice.envs[i], slice.indices[i]);
   }
 }
 
-class CLambdaInner extends Continuation {
-  final LambdaValue lambda;
-  final Continuation c;
-  
-  public CLambdaInner(LambdaValue lambda, Continuation c) {
-    this.lambda = lambda;
-    this.c = c;
+// Segments start small, as most programs and most splits after an Escape
+// stay shallow, and double up to MAX as the stack overflows them
+class Segment {
+  static final int MIN = 16;
+  static final int MAX = 1024;
+
+  final Segment below;
+  final int belowSp;
+  final int[] tags;
+  final Object[] nodes;
+  final Environment[] envs;
+  final int[] indices;
+  boolean frozen;
+
+  Segment(Segment below, int belowSp, int capacity) {
+    this.below = below;
+    this.belowSp = belowSp;
+    this.tags = new int[capacity];
+    this.nodes = new Object[capacity];
+    this.envs = new Environment[capacity];
+    this.indices = new int[capacity];
   }
 }
 
-class Cprint extends Continuation {
-}
+// Closures
 
-class CSeq extends Continuation {
+class Closure {
+  static final int CL1 = 0;
+  static final int CL_FLAT = 1;
+  static final int CL2 = 2;
+  static final int CL_COMPILED = 3;
+  static final int CL_DELIMITED = 4;
 
-  final Expression[] left;
-  final Continuation c;
-  final Environment env;
+  final int tag;
 
-  public CSeq(Expression[] left, Continuation c, Environment env) {
-    this.left = left;
-    this.c = c;
-    this.env = env;
+  public Closure(int tag) {
+    this.tag = tag;
   }
 }
 
-// Closures
-
-class Closure {
-}
-
 class CL1 extends Closure {
   final LambdaDef lambdaDef;
-  final Environment env;
+  // Set after construction only by LetRec, whose closure's environment
+  // binds the closure itself
+  Environment env;
 
   public CL1(LambdaDef lambdaDef, Environment env) {
+    super(CL1);
     this.lambdaDef = lambdaDef;
     this.env = env;
   }
 }
 
-class CL2 extends Closure {
-  final Continuation c;
+class CLFlat extends Closure {
+  final FlatLambdaDef lambdaDef;
+  final Value[] captured;
 
-  public CL2(Continuation c) {
-    this.c = c;
+  public CLFlat(FlatLambdaDef lambdaDef, Value[] captured) {
+    super(CL_FLAT);
+    this.lambdaDef = lambdaDef;
+    this.captured = captured;
   }
 }
 
-// Environments
+// An escape continuation: the frozen stack below the Escape
+class CL2 extends Closure {
+  final Segment top;
+  final int sp;
 
-class Bind {
-	final Variable var;
-	final Value	 val;
+  public CL2(Segment top, int sp) {
+    super(CL2);
+    this.top = top;
+    this.sp = sp;
+  }
+}
 
-	public Bind(Variable var, Value val) {
-		this.var = var;
-		this.val = val;
-	}
+// A delimited continuation: the frames between a Shift and its Reset,
+// bottom first
+class CLDelimited extends Closure {
+  final int[] tags;
+  final Object[] nodes;
+  final Environment[] envs;
+  final int[] indices;
+
+  public CLDelimited(int size) {
+    super(CL_DELIMITED);
+    this.tags = new int[size];
+    this.nodes = new Object[size];
+    this.envs = new Environment[size];
+    this.indices = new int[size];
+  }
 }
 
+// Environments
+
 class Environment {
-  public static Environment EMPTY = new Environment(List.EMPTY);
-	private List binds;
+  public static final Environment EMPTY = new Environment(Bindings.<Value>empty(), null, new Value[0]);
+
+	// Environments extending HASHED keep their bindings in a Hamt keyed on
+	// symbols, so lookups stay fast however many names are in scope. They have
+	// no depths: every variable bound in them is looked up by name.
+	public static final Environment HASHED = new Environment(null, Hamt.EMPTY, new Value[0]);
+
+	private final Bindings<Value> binds;
+	private final Hamt names;
+	private final Value[] captured;
+
+	private Environment(Bindings<Value> binds, Hamt names, Value[] captured) {
+		this.binds = binds;
+		this.names = names;
+		this.captured = captured;
+	}
 
-	private Environment(List binds) { this.binds = binds; }
+	// The environment a flat closure's body starts from
+	public static Environment flat(Value[] captured) {
+		return new Environment(Bindings.<Value>empty(), null, captured);
+	}
 	
 	public Environment bind(Variable va, Value vv) {
-	  return new Environment(binds.add(new Bind(va,vv)));
+		if (names != null)
+			return new Environment(null, names.put(va.symbol, vv), captured);
+	  return new Environment(binds.bind(va.symbol, vv), null, captured);
+	}
+
+	// Whether v is bound here, by depth or by name
+	public boolean binds(Variable v) {
+		return names != null ? names.containsKey(v.symbol) : depth(v) >= 0;
+	}
+
+	public Value captured(int index) {
+		return captured[index];
 	}
 
 	public Value lookup(Variable v) {
-		return lookup(v, binds);
+		if (names != null) {
+			// No Value is an Environment, so this stands for "not found"
+			Object value = names.get(v.symbol, this);
+			if (value == this)
+				throw new NoSuchElementException();
+			return (Value) value;
+		}
+		return binds.lookup(v.symbol);
 	}
 
-	public Value lookup(Variable v, List rest) {
-		if (rest == null)
-			throw new NoSuchElementException();
+	public Value lookup(int depth) {
+		return binds.get(depth);
+	}
 
-		Bind b = (Bind) rest.el;
+	public int depth(Variable v) {
+		if (names != null)
+			return -1;
 
-		if (v.name.equals(b.var.name))
-			return b.val;
-		else
-			return lookup(v, rest.rest);
+		return binds.depth(v.symbol);
 	}
 }
 
 
+// Free variables captured by the LambdaDef being converted, with their
+// addresses in the scope enclosing it
+class ClosureScope {
+  final Environment outerLocals;
+  final ClosureScope outer;
+  final ArrayList<Variable> vars = new ArrayList<>();
+  final ArrayList<Expression> addresses = new ArrayList<>();
+
+  public ClosureScope(Environment outerLocals, ClosureScope outer) {
+    this.outerLocals = outerLocals;
+    this.outer = outer;
+  }
+
+  Expression capture(Variable v) {
+    for (int i = 0; i < vars.size(); i++)
+      if (v.symbol == vars.get(i).symbol)
+        return new CapturedVariable(v, i);
+
+    // Names bound in a hashed environment are captured by name; any other
+    // Variable address is unbound
+    Expression outerAddress = Interpreter.address(v, outerLocals, outer);
+    if (outerAddress instanceof Variable && !outerLocals.binds(v))
+      return v;
+
+    vars.add(v);
+    addresses.add(outerAddress);
+    return new CapturedVariable(v, vars.size() - 1);
+  }
+}
+
 // Expressions
 
 class Expression {
+  static final int INT_CONSTANT = 0;
+  static final int BOOL_CONSTANT = 1;
+  static final int INT_ARITHMETIC = 2;
+  static final int INT_COMPARISON = 3;
+  static final int IF = 4;
+  static final int VARIABLE = 5;
+  static final int LEXICAL_VARIABLE = 6;
+  static final int CAPTURED_VARIABLE = 7;
+  static final int LAMBDA_DEF = 8;
+  static final int FLAT_LAMBDA_DEF = 9;
+  static final int LAMBDA_APP = 10;
+  static final int ESCAPE = 11;
+  static final int SEQ = 12;
+  static final int RESET = 13;
+  static final int SHIFT = 14;
+  static final int LET = 15;
+  static final int LET_REC = 16;
+
+  final int tag;
+
+  public Expression(int tag) {
+    this.tag = tag;
+  }
 }
 
 class IntConstant extends Expression {
   final int javaInt;
 
   public IntConstant(int javaInt) {
+    super(INT_CONSTANT);
     this.javaInt = javaInt;
   }
 }
@@ -350,6 +1280,7 @@ class BoolConstant extends Expression {
   final boolean javaBool;
 
   public BoolConstant(boolean javaBool) {
+    super(BOOL_CONSTANT);
     this.javaBool = javaBool;
   }
 }
@@ -361,6 +1292,7 @@ class IntArithmetic extends Expression {
   final Expression operand1, operand2;
   
   public IntArithmetic(Operation op, Expression operand1, Expression operand2) {
+    super(INT_ARITHMETIC);
     this.op = op;
     this.operand1 = operand1;
     this.operand2 = operand2;
@@ -371,6 +1303,7 @@ class IntComparison extends Expression {
   final Expression operand1, operand2;
   
   public IntComparison(Expression operand1, Expression operand2) {
+    super(INT_COMPARISON);
     this.operand1 = operand1;
     this.operand2 = operand2;
   }
@@ -380,6 +1313,7 @@ class If extends Expression {
   final Expression guard, t, f;
 
   public If(Expression guard, Expression t, Expression f) {
+    super(IF);
     this.guard = guard;
     this.t = t;
     this.f = f;
@@ -388,9 +1322,34 @@ class If extends Expression {
 
 class Variable extends Expression {
   final String name;
+  final Symbol symbol;
 
   public Variable(String name) {
+    super(VARIABLE);
     this.name = name;
+    this.symbol = Symbol.intern(name);
+  }
+}
+
+class LexicalVariable extends Expression {
+  final Variable var;
+  final int depth;
+
+  public LexicalVariable(Variable var, int depth) {
+    super(LEXICAL_VARIABLE);
+    this.var = var;
+    this.depth = depth;
+  }
+}
+
+class CapturedVariable extends Expression {
+  final Variable var;
+  final int index;
+
+  public CapturedVariable(Variable var, int index) {
+    super(CAPTURED_VARIABLE);
+    this.var = var;
+    this.index = index;
   }
 }
 
@@ -399,16 +1358,31 @@ class LambdaDef extends Expression {
   final Expression body;
 
   public LambdaDef(Variable formalArgument, Expression body) {
+    super(LAMBDA_DEF);
     this.formalArgument = formalArgument;
     this.body = body;
   }
 }
 
+class FlatLambdaDef extends Expression {
+  final Variable formalArgument;
+  final Expression body;
+  final Expression[] captures;
+
+  public FlatLambdaDef(Variable formalArgument, Expression body, Expression[] captures) {
+    super(FLAT_LAMBDA_DEF);
+    this.formalArgument = formalArgument;
+    this.body = body;
+    this.captures = captures;
+  }
+}
+
 class LambdaApp extends Expression {
   final Expression lambda;
   final Expression argument;
 
   public LambdaApp(Expression lambda, Expression argument) {
+    super(LAMBDA_APP);
     this.lambda = lambda;
     this.argument = argument;
   }
@@ -419,6 +1393,7 @@ class Escape extends Expression {
   final Expression body;
 
   public Escape(Variable formalArgument, Expression body) {
+    super(ESCAPE);
     this.formalArgument = formalArgument;
     this.body = body;
   }
@@ -428,22 +1403,89 @@ class Seq extends Expression {
   final Expression[] expressions;
   
   public Seq(Expression ... expressions){
+    super(SEQ);
     this.expressions = expressions;
   }
 }
 
+class Reset extends Expression {
+  final Expression body;
+
+  public Reset(Expression body) {
+    super(RESET);
+    this.body = body;
+  }
+}
+
+// Binds formalArgument to the continuation up to the nearest Reset, which
+// it removes, and evaluates body in its place
+class Shift extends Expression {
+  final Variable formalArgument;
+  final Expression body;
+
+  public Shift(Variable formalArgument, Expression body) {
+    super(SHIFT);
+    this.formalArgument = formalArgument;
+    this.body = body;
+  }
+}
+
+class Let extends Expression {
+  final Variable var;
+  final Expression value;
+  final Expression body;
+
+  public Let(Variable var, Expression value, Expression body) {
+    super(LET);
+    this.var = var;
+    this.value = value;
+    this.body = body;
+  }
+}
+
+// Binds var to the closure of lambda, a LambdaDef or FlatLambdaDef, in an
+// environment where var is already bound to it, so lambda can call itself
+// without a fixed-point combinator
+class LetRec extends Expression {
+  final Variable var;
+  final Expression lambda;
+  final Expression body;
+
+  public LetRec(Variable var, Expression lambda, Expression body) {
+    super(LET_REC);
+    this.var = var;
+    this.lambda = lambda;
+    this.body = body;
+  }
+}
+
 // Values
 
 class Value {
 }
 
 class IntValue extends Value {
+  static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+  static final IntValue[] CACHE = new IntValue[CACHE_HIGH - CACHE_LOW + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; i++)
+      CACHE[i] = new IntValue(CACHE_LOW + i);
+  }
+
   final int javaInt;
 
   public IntValue(int javaInt) {
     this.javaInt = javaInt;
   }
 
+  // Small values are shared; any other value is freshly allocated
+  static IntValue valueOf(int javaInt) {
+    if (javaInt >= CACHE_LOW && javaInt <= CACHE_HIGH)
+      return CACHE[javaInt - CACHE_LOW];
+    return new IntValue(javaInt);
+  }
+
   @Override
   public String toString() {
     return "" + this.javaInt;
@@ -451,12 +1493,19 @@ class IntValue extends Value {
 }
 
 class BoolValue extends Value {
+  static final BoolValue TRUE = new BoolValue(true);
+  static final BoolValue FALSE = new BoolValue(false);
+
   final boolean javaBool;
 
   public BoolValue(boolean javaBool) {
     this.javaBool = javaBool;
   }
 
+  static BoolValue valueOf(boolean javaBool) {
+    return javaBool ? TRUE : FALSE;
+  }
+
   @Override
   public String toString() {
     return "" + this.javaBool;
@@ -474,10 +1523,12 @@ class LambdaValue extends Value {
   }
 }
 
+// A program's expression is folded once, when the Program is built, so
+// evaluating it again does not fold it again
 class Program {
   final Expression e;
 
   public Program(Expression e) {
-    this.e = e;
+    this.e = Interpreter.fold(e);
   }
 }
\ No newline at end of file
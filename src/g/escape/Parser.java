@@ -0,0 +1,390 @@
+package g.escape;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import util.BufferedSink;
+import util.Sink;
+import g.escape.IntArithmetic.Operation;
+
+// Reads programs written as s-expressions:
+//
+//   42  -7  true  false  x
+//   (+ a b)  (- a b)  (* a b)  (/ a b)  (= a b)
+//   (if guard then else)
+//   (lambda (x) body)  (escape (k) body)  (seq e1 e2 ...)
+//   (reset body)  (shift (k) body)
+//   (let (x value) body)  (letrec (f (lambda (x) body)) body)
+//   (f a)  (f a b ...) = ((f a) b) ...
+//
+// A ';' starts a comment that runs to the end of the line, and a source with
+// several top-level expressions is read as their seq. The input is consumed
+// through a fixed buffer, and names are interned straight from it, so a
+// Variable is only allocated the first time its name is seen.
+public class Parser {
+  static final int EOF = -1;
+
+  final Reader in;
+  final char[] buffer = new char[8192];
+  int position, limit;
+
+  // Position of the next character
+  int line = 1, column = 1;
+
+  // The current atom
+  char[] token = new char[64];
+  int tokenLength, tokenHash;
+
+  final Symbols symbols;
+  final Variable IF, LAMBDA, ESCAPE, SEQ, RESET, SHIFT, LET, LETREC, PLUS, MINUS, MULT, DIV, EQ, TRUE, FALSE;
+
+  public Parser(Reader in, Symbols symbols) {
+    this.in = in;
+    this.symbols = symbols;
+    IF = symbols.intern("if");
+    LAMBDA = symbols.intern("lambda");
+    ESCAPE = symbols.intern("escape");
+    SEQ = symbols.intern("seq");
+    RESET = symbols.intern("reset");
+    SHIFT = symbols.intern("shift");
+    LET = symbols.intern("let");
+    LETREC = symbols.intern("letrec");
+    PLUS = symbols.intern("+");
+    MINUS = symbols.intern("-");
+    MULT = symbols.intern("*");
+    DIV = symbols.intern("/");
+    EQ = symbols.intern("=");
+    TRUE = symbols.intern("true");
+    FALSE = symbols.intern("false");
+  }
+
+  static Program parse (Reader in) throws IOException {
+    return new Parser(in, new Symbols()).program();
+  }
+
+  Program program() throws IOException {
+    ArrayList<Expression> expressions = new ArrayList<>();
+
+    skipSpace();
+    while (peek() != EOF) {
+      expressions.add(expression());
+      skipSpace();
+    }
+
+    if (expressions.size() == 1)
+      return new Program(expressions.get(0));
+    return new Program(new Seq(expressions.toArray(new Expression[expressions.size()])));
+  }
+
+  Expression expression() throws IOException {
+    int line = this.line, column = this.column;
+    Expression e = term();
+
+    if (e instanceof Variable && isKeyword((Variable) e))
+      throw new SyntaxError("unexpected '" + ((Variable) e).name + "'", line, column);
+    return e;
+  }
+
+  // An expression, or a keyword in the head position of a list
+  Expression term() throws IOException {
+    skipSpace();
+
+    int c = peek();
+    if (c == '(')
+      return list();
+    else if (c == ')')
+      throw new SyntaxError("unexpected ')'", line, column);
+    else if (c == EOF)
+      throw new SyntaxError("unexpected end of input", line, column);
+    else
+      return atom();
+  }
+
+  Expression list() throws IOException {
+    int line = this.line, column = this.column;
+    read();
+
+    Expression head = term();
+    Expression e;
+
+    if (head == IF) {
+      e = new If(expression(), expression(), expression());
+    } else if (head == LAMBDA) {
+      Variable formalArgument = formal();
+      e = new LambdaDef(formalArgument, expression());
+    } else if (head == ESCAPE) {
+      Variable formalArgument = formal();
+      e = new Escape(formalArgument, expression());
+    } else if (head == SEQ) {
+      ArrayList<Expression> expressions = new ArrayList<>();
+      while (skipSpace() != ')')
+        expressions.add(expression());
+      e = new Seq(expressions.toArray(new Expression[expressions.size()]));
+    } else if (head == RESET) {
+      e = new Reset(expression());
+    } else if (head == SHIFT) {
+      Variable formalArgument = formal();
+      e = new Shift(formalArgument, expression());
+    } else if (head == LET) {
+      Variable var = bindingName();
+      Expression value = expression();
+      bindingEnd();
+      e = new Let(var, value, expression());
+    } else if (head == LETREC) {
+      Variable var = bindingName();
+      skipSpace();
+      int valueLine = this.line, valueColumn = this.column;
+      Expression value = expression();
+      if (!(value instanceof LambdaDef))
+        throw new SyntaxError("expected a lambda", valueLine, valueColumn);
+      bindingEnd();
+      e = new LetRec(var, value, expression());
+    } else if (head == PLUS) {
+      e = new IntArithmetic(Operation.PLUS, expression(), expression());
+    } else if (head == MINUS) {
+      e = new IntArithmetic(Operation.MINUS, expression(), expression());
+    } else if (head == MULT) {
+      e = new IntArithmetic(Operation.MULT, expression(), expression());
+    } else if (head == DIV) {
+      e = new IntArithmetic(Operation.DIV, expression(), expression());
+    } else if (head == EQ) {
+      e = new IntComparison(expression(), expression());
+    } else if (head instanceof Variable && isKeyword((Variable) head)) {
+      throw new SyntaxError("unexpected '" + ((Variable) head).name + "'", line, column);
+    } else {
+      e = new LambdaApp(head, expression());
+      while (skipSpace() != ')')
+        e = new LambdaApp(e, expression());
+    }
+
+    if (skipSpace() != ')')
+      throw new SyntaxError("expected ')' to close the list opened here", line, column);
+    read();
+    return e;
+  }
+
+  // (x)
+  Variable formal() throws IOException {
+    Variable v = bindingName();
+    bindingEnd();
+    return v;
+  }
+
+  // The "(x" that opens a formal argument or a binding
+  Variable bindingName() throws IOException {
+    if (skipSpace() != '(')
+      throw new SyntaxError("expected '('", this.line, this.column);
+    read();
+
+    int line = this.line, column = this.column;
+    Expression e = term();
+    if (!(e instanceof Variable) || isKeyword((Variable) e))
+      throw new SyntaxError("expected a variable name", line, column);
+    return (Variable) e;
+  }
+
+  void bindingEnd() throws IOException {
+    if (skipSpace() != ')')
+      throw new SyntaxError("expected ')'", this.line, this.column);
+    read();
+  }
+
+  Expression atom() throws IOException {
+    int line = this.line, column = this.column;
+
+    tokenLength = 0;
+    tokenHash = 0;
+    for (int c = peek(); !isDelimiter(c); c = peek()) {
+      if (tokenLength == token.length)
+        token = Arrays.copyOf(token, 2 * tokenLength);
+      token[tokenLength++] = (char) c;
+      tokenHash = 31 * tokenHash + c;
+      read();
+    }
+
+    char first = token[0];
+    // Any Unicode digit starts a number, and number() rejects all but ASCII
+    if (Character.isDigit(first) || (first == '-' && tokenLength > 1 && Character.isDigit(token[1])))
+      return number(line, column);
+
+    Variable v = symbols.intern(token, tokenLength, tokenHash);
+    if (v == TRUE)
+      return new BoolConstant(true);
+    else if (v == FALSE)
+      return new BoolConstant(false);
+    return v;
+  }
+
+  IntConstant number(int line, int column) {
+    boolean negative = token[0] == '-';
+    long value = 0;
+
+    for (int i = negative ? 1 : 0; i < tokenLength; i++) {
+      char c = token[i];
+      if (c < '0' || c > '9')
+        throw new SyntaxError("malformed number", line, column);
+      value = 10 * value + (c - '0');
+      if (value > (long) Integer.MAX_VALUE + 1)
+        throw new SyntaxError("number out of range", line, column);
+    }
+
+    if (negative)
+      value = -value;
+    if (value > Integer.MAX_VALUE)
+      throw new SyntaxError("number out of range", line, column);
+    return new IntConstant((int) value);
+  }
+
+  boolean isKeyword(Variable v) {
+    return v == IF || v == LAMBDA || v == ESCAPE || v == SEQ || v == RESET || v == SHIFT
+        || v == LET || v == LETREC
+        || v == PLUS || v == MINUS || v == MULT || v == DIV || v == EQ;
+  }
+
+  static boolean isDelimiter(int c) {
+    return c == EOF || c == '(' || c == ')' || c == ';' || Character.isWhitespace(c);
+  }
+
+  // Skips blanks and comments, and returns the next character
+  int skipSpace() throws IOException {
+    for (;;) {
+      int c = peek();
+      if (c == ';') {
+        while (c != '\n' && c != EOF) {
+          read();
+          c = peek();
+        }
+      } else if (c != EOF && Character.isWhitespace(c)) {
+        read();
+      } else {
+        return c;
+      }
+    }
+  }
+
+  int peek() throws IOException {
+    if (position == limit) {
+      limit = in.read(buffer, 0, buffer.length);
+      position = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return EOF;
+      }
+    }
+    return buffer[position];
+  }
+
+  void read() throws IOException {
+    if (buffer[position++] == '\n') {
+      line++;
+      column = 1;
+    } else {
+      column++;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    // Runs each file named on the command line, or standard input, and
+    // prints their values through one BufferedSink. With
+    // -Descape.cache=<directory>, files go through a ProgramCache there, and
+    // with -Descape.env=hashed, programs run in Environment.HASHED.
+    String cacheDirectory = System.getProperty("escape.cache");
+    Environment env = "hashed".equals(System.getProperty("escape.env")) ? Environment.HASHED : Environment.EMPTY;
+    Sink out = BufferedSink.stdout();
+
+    try {
+      if (args.length == 0) {
+        Interpreter.interpret(parse(new InputStreamReader(System.in)), env, out);
+      } else if (cacheDirectory != null) {
+        ProgramCache cache = new ProgramCache(Paths.get(cacheDirectory), env);
+        for (String file : args)
+          out.println(Interpreter.execute(cache.load(Files.readAllBytes(Paths.get(file))), env));
+      } else {
+        for (String file : args) {
+          try (Reader in = new FileReader(file)) {
+            Interpreter.interpret(parse(in), env, out);
+          }
+        }
+      }
+    } finally {
+      out.flush();
+    }
+  }
+
+}
+
+// Interned names: one Variable per distinct name, looked up without first
+// building a String
+class Symbols {
+  Variable[] table = new Variable[256];
+  int[] hashes = new int[256];
+  int size;
+
+  Variable intern(String name) {
+    char[] chars = name.toCharArray();
+    return intern(chars, chars.length, name.hashCode());
+  }
+
+  Variable intern(char[] chars, int length, int hash) {
+    int mask = table.length - 1;
+
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      Variable v = table[i];
+      if (v == null) {
+        v = new Variable(new String(chars, 0, length));
+        table[i] = v;
+        hashes[i] = hash;
+        if (++size > table.length / 2)
+          grow();
+        return v;
+      } else if (hashes[i] == hash && matches(v.name, chars, length)) {
+        return v;
+      }
+    }
+  }
+
+  static boolean matches(String name, char[] chars, int length) {
+    if (name.length() != length)
+      return false;
+    for (int i = 0; i < length; i++)
+      if (name.charAt(i) != chars[i])
+        return false;
+    return true;
+  }
+
+  void grow() {
+    Variable[] oldTable = table;
+    int[] oldHashes = hashes;
+    table = new Variable[2 * oldTable.length];
+    hashes = new int[2 * oldTable.length];
+
+    int mask = table.length - 1;
+    for (int j = 0; j < oldTable.length; j++) {
+      if (oldTable[j] == null)
+        continue;
+      int i = oldHashes[j] & mask;
+      while (table[i] != null)
+        i = (i + 1) & mask;
+      table[i] = oldTable[j];
+      hashes[i] = oldHashes[j];
+    }
+  }
+}
+
+class SyntaxError extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  final int line, column;
+
+  public SyntaxError(String message, int line, int column) {
+    super(line + ":" + column + ": " + message);
+    this.line = line;
+    this.column = column;
+  }
+}
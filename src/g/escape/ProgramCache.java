@@ -0,0 +1,426 @@
+package g.escape;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import g.escape.IntArithmetic.Operation;
+
+// Caches the front end's output on disk: the first run of a source parses,
+// folds and closure-converts it, and writes the converted expression to
+// <directory>/<sha-256 of the source>.bin. Later runs of the same source map
+// that file and decode the expression straight from it.
+//
+// Conversion depends on the initial environment, so a cache is for one
+// empty environment, Environment.EMPTY or Environment.HASHED, whose forms
+// are kept apart by their file names.
+//
+// The file is a header with a CRC-32 of the rest, a table of the distinct
+// names, and the expression in prefix order: each node is its tag byte
+// followed by its fields, with names as indices into the table and
+// integers as zigzag varints.
+//
+// A file holds the parser's, fold's and convert's output, so VERSION must
+// change whenever any of them does: a source parsed under another grammar
+// (one where let was not a keyword, say) means something else. A file of
+// another version, or one that does not decode, is parsed again and
+// replaced.
+public class ProgramCache {
+  static final int MAGIC = 0x44435053; // "DCPS"
+  // 2: reset, shift, let and letrec
+  static final int VERSION = 2;
+
+  final Path directory;
+  final Environment env;
+
+  public ProgramCache(Path directory, Environment env) {
+    this.directory = directory;
+    this.env = env;
+  }
+
+  // The converted program for source, from the cache when possible
+  Expression load (byte[] source) throws IOException {
+    Path file = directory.resolve(key(source) + (env == Environment.HASHED ? ".hashed.bin" : ".bin"));
+
+    if (Files.exists(file)) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        Expression e = read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        if (e != null)
+          return e;
+      }
+    }
+
+    Program p = Parser.parse(new InputStreamReader(new ByteArrayInputStream(source), StandardCharsets.UTF_8));
+    Expression e = Interpreter.convert(p.e, env, null);
+
+    // Written aside and renamed, so a concurrent run never maps half a file
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, null, ".tmp");
+    try {
+      Files.write(temporary, write(e));
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return e;
+  }
+
+  static String key (byte[] source) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(source);
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest)
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  // Encoding
+
+  static byte[] write (Expression e) {
+    Encoder w = new Encoder();
+    w.expression(e);
+
+    Encoder table = new Encoder();
+    table.varint(w.names.size());
+    for (String name : w.nameList) {
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      table.varint(bytes.length);
+      table.out.write(bytes, 0, bytes.length);
+    }
+    byte[] body = w.out.toByteArray();
+    table.out.write(body, 0, body.length);
+    byte[] rest = table.out.toByteArray();
+
+    CRC32 crc = new CRC32();
+    crc.update(rest);
+
+    Encoder header = new Encoder();
+    header.int32(MAGIC);
+    header.int32(VERSION);
+    header.int32((int) crc.getValue());
+    header.out.write(rest, 0, rest.length);
+    return header.out.toByteArray();
+  }
+
+  // Returns null for a file written by another version, or a truncated or
+  // corrupt one
+  static Expression read (ByteBuffer in) {
+    if (in.remaining() < 12 || in.getInt() != MAGIC || in.getInt() != VERSION)
+      return null;
+
+    // A flipped bit can decode to a valid program that means something else
+    int checksum = in.getInt();
+    CRC32 crc = new CRC32();
+    crc.update(in.duplicate());
+    if ((int) crc.getValue() != checksum)
+      return null;
+
+    try {
+      Decoder r = new Decoder(in);
+      r.names = new Variable[r.length()];
+      for (int i = 0; i < r.names.length; i++) {
+        byte[] bytes = new byte[r.length()];
+        in.get(bytes);
+        r.names[i] = new Variable(new String(bytes, StandardCharsets.UTF_8));
+      }
+
+      Expression e = r.expression();
+      return in.hasRemaining() ? null : e;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | Corrupt e) {
+      return null;
+    }
+  }
+
+  static class Encoder {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final HashMap<String, Integer> names = new HashMap<>();
+    final ArrayList<String> nameList = new ArrayList<>();
+
+    void int32(int i) {
+      out.write(i >>> 24);
+      out.write(i >>> 16);
+      out.write(i >>> 8);
+      out.write(i);
+    }
+
+    void varint(int i) {
+      while ((i & ~0x7f) != 0) {
+        out.write((i & 0x7f) | 0x80);
+        i >>>= 7;
+      }
+      out.write(i);
+    }
+
+    void signed(int i) {
+      varint((i << 1) ^ (i >> 31));
+    }
+
+    void name(Variable v) {
+      Integer index = names.get(v.name);
+      if (index == null) {
+        index = nameList.size();
+        names.put(v.name, index);
+        nameList.add(v.name);
+      }
+      varint(index);
+    }
+
+    void expression(Expression e) {
+      out.write(e.tag);
+
+      switch (e.tag) {
+        case Expression.INT_CONSTANT:
+          signed(((IntConstant) e).javaInt);
+          return;
+        case Expression.BOOL_CONSTANT:
+          out.write(((BoolConstant) e).javaBool ? 1 : 0);
+          return;
+        case Expression.INT_ARITHMETIC: {
+          IntArithmetic arith = (IntArithmetic) e;
+
+          out.write(arith.op.ordinal());
+          expression(arith.operand1);
+          expression(arith.operand2);
+          return;
+        }
+        case Expression.INT_COMPARISON: {
+          IntComparison intComp = (IntComparison) e;
+
+          expression(intComp.operand1);
+          expression(intComp.operand2);
+          return;
+        }
+        case Expression.IF: {
+          If ifE = (If) e;
+
+          expression(ifE.guard);
+          expression(ifE.t);
+          expression(ifE.f);
+          return;
+        }
+        case Expression.VARIABLE:
+          name((Variable) e);
+          return;
+        case Expression.LEXICAL_VARIABLE: {
+          LexicalVariable lv = (LexicalVariable) e;
+
+          name(lv.var);
+          varint(lv.depth);
+          return;
+        }
+        case Expression.CAPTURED_VARIABLE: {
+          CapturedVariable cv = (CapturedVariable) e;
+
+          name(cv.var);
+          varint(cv.index);
+          return;
+        }
+        case Expression.LAMBDA_DEF: {
+          LambdaDef lambdaDef = (LambdaDef) e;
+
+          name(lambdaDef.formalArgument);
+          expression(lambdaDef.body);
+          return;
+        }
+        case Expression.FLAT_LAMBDA_DEF: {
+          FlatLambdaDef lambdaDef = (FlatLambdaDef) e;
+
+          name(lambdaDef.formalArgument);
+          varint(lambdaDef.captures.length);
+          for (Expression capture : lambdaDef.captures)
+            expression(capture);
+          expression(lambdaDef.body);
+          return;
+        }
+        case Expression.LAMBDA_APP: {
+          LambdaApp lambdaApp = (LambdaApp) e;
+
+          expression(lambdaApp.lambda);
+          expression(lambdaApp.argument);
+          return;
+        }
+        case Expression.ESCAPE: {
+          Escape escape = (Escape) e;
+
+          name(escape.formalArgument);
+          expression(escape.body);
+          return;
+        }
+        case Expression.SEQ: {
+          Seq seq = (Seq) e;
+
+          varint(seq.expressions.length);
+          for (Expression expression : seq.expressions)
+            expression(expression);
+          return;
+        }
+        case Expression.RESET:
+          expression(((Reset) e).body);
+          return;
+        case Expression.SHIFT: {
+          Shift shift = (Shift) e;
+
+          name(shift.formalArgument);
+          expression(shift.body);
+          return;
+        }
+        case Expression.LET: {
+          Let let = (Let) e;
+
+          name(let.var);
+          expression(let.value);
+          expression(let.body);
+          return;
+        }
+        case Expression.LET_REC: {
+          LetRec letRec = (LetRec) e;
+
+          name(letRec.var);
+          expression(letRec.lambda);
+          expression(letRec.body);
+          return;
+        }
+      }
+
+      throw new Error();
+    }
+  }
+
+  static class Decoder {
+    static final Operation[] OPERATIONS = Operation.values();
+
+    final ByteBuffer in;
+    Variable[] names;
+
+    Decoder(ByteBuffer in) {
+      this.in = in;
+    }
+
+    int varint() {
+      int i = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = in.get();
+        i |= (b & 0x7f) << shift;
+        if (b >= 0)
+          return i;
+      }
+    }
+
+    int signed() {
+      int i = varint();
+      return (i >>> 1) ^ -(i & 1);
+    }
+
+    // A count of what follows, each at least a byte long
+    int length() {
+      int length = varint();
+      if (length < 0 || length > in.remaining())
+        throw new BufferUnderflowException();
+      return length;
+    }
+
+    Expression expression() {
+      switch (in.get()) {
+        case Expression.INT_CONSTANT:
+          return new IntConstant(signed());
+        case Expression.BOOL_CONSTANT:
+          return new BoolConstant(in.get() != 0);
+        case Expression.INT_ARITHMETIC: {
+          Operation op = OPERATIONS[in.get()];
+          Expression operand1 = expression();
+          return new IntArithmetic(op, operand1, expression());
+        }
+        case Expression.INT_COMPARISON: {
+          Expression operand1 = expression();
+          return new IntComparison(operand1, expression());
+        }
+        case Expression.IF: {
+          Expression guard = expression();
+          Expression t = expression();
+          return new If(guard, t, expression());
+        }
+        case Expression.VARIABLE:
+          return names[varint()];
+        case Expression.LEXICAL_VARIABLE: {
+          Variable var = names[varint()];
+          return new LexicalVariable(var, varint());
+        }
+        case Expression.CAPTURED_VARIABLE: {
+          Variable var = names[varint()];
+          return new CapturedVariable(var, varint());
+        }
+        case Expression.LAMBDA_DEF: {
+          Variable formalArgument = names[varint()];
+          return new LambdaDef(formalArgument, expression());
+        }
+        case Expression.FLAT_LAMBDA_DEF: {
+          Variable formalArgument = names[varint()];
+          Expression[] captures = new Expression[length()];
+          for (int i = 0; i < captures.length; i++)
+            captures[i] = expression();
+          return new FlatLambdaDef(formalArgument, expression(), captures);
+        }
+        case Expression.LAMBDA_APP: {
+          Expression lambda = expression();
+          return new LambdaApp(lambda, expression());
+        }
+        case Expression.ESCAPE: {
+          Variable formalArgument = names[varint()];
+          return new Escape(formalArgument, expression());
+        }
+        case Expression.SEQ: {
+          Expression[] expressions = new Expression[length()];
+          for (int i = 0; i < expressions.length; i++)
+            expressions[i] = expression();
+          return new Seq(expressions);
+        }
+        case Expression.RESET:
+          return new Reset(expression());
+        case Expression.SHIFT: {
+          Variable formalArgument = names[varint()];
+          return new Shift(formalArgument, expression());
+        }
+        case Expression.LET: {
+          Variable var = names[varint()];
+          Expression value = expression();
+          return new Let(var, value, expression());
+        }
+        case Expression.LET_REC: {
+          Variable var = names[varint()];
+          Expression lambda = expression();
+          if (lambda.tag != Expression.FLAT_LAMBDA_DEF)
+            throw new Corrupt();
+          return new LetRec(var, lambda, expression());
+        }
+      }
+
+      throw new Corrupt();
+    }
+  }
+
+  static class Corrupt extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public Corrupt() {
+      super(null, null, false, false);
+    }
+  }
+
+}
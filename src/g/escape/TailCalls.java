@@ -0,0 +1,76 @@
+package g.escape;
+
+import g.escape.IntArithmetic.Operation;
+
+// Checks that calls in tail position run in constant space: a loop through
+// the Z combinator that makes 10^8 tail calls (or args[0]) must finish with
+// the default Java stack and a small heap, e.g.
+//
+//   java -Xmx16m -cp build g.escape.TailCalls
+//
+// A call's frame is popped before its lambda's body is evaluated, so the
+// body's value goes straight to the caller's continuation, and a closure's
+// environment extends the one it was defined in, not the caller's.
+public class TailCalls {
+
+  // count(n)(acc) = if n == 0 then acc else count(n - 1)(acc + 1)
+  static Program count (int n) {
+    Expression zHalf =
+        new LambdaDef(
+            new Variable("x"),
+            new LambdaApp(
+                new Variable("f"),
+                new LambdaDef(
+                    new Variable("v"),
+                    new LambdaApp(
+                        new LambdaApp(
+                            new Variable("x"),
+                            new Variable("x")),
+                        new Variable("v")))));
+    return new Program(
+        new LambdaApp(
+            new LambdaApp(
+                new LambdaApp(
+                    new LambdaDef(
+                        new Variable("f"),
+                        new LambdaApp(zHalf, zHalf)),
+                    new LambdaDef(
+                        new Variable("count"),
+                        new LambdaDef(
+                            new Variable("n"),
+                            new LambdaDef(
+                                new Variable("acc"),
+                                new If(
+                                    new IntComparison(
+                                        new Variable("n"),
+                                        new IntConstant(0)),
+                                    new Variable("acc"),
+                                    new LambdaApp(
+                                        new LambdaApp(
+                                            new Variable("count"),
+                                            new IntArithmetic(
+                                                Operation.MINUS,
+                                                new Variable("n"),
+                                                new IntConstant(1))),
+                                        new IntArithmetic(
+                                            Operation.PLUS,
+                                            new Variable("acc"),
+                                            new IntConstant(1)))))))),
+                new IntConstant(n)),
+            new IntConstant(0)));
+  }
+
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000000;
+
+    for (boolean flatClosures : new boolean[] { false, true }) {
+      long start = System.nanoTime();
+      Value v = Interpreter.evaluate(count(n), Environment.EMPTY, flatClosures);
+      long ms = (System.nanoTime() - start) / 1000000;
+
+      System.out.println((v.toString().equals("" + n) ? "ok " : "MISMATCH ") + v
+          + (flatClosures ? " flat closures, " : " ") + ms + " ms");
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+package util;
+
+import java.util.NoSuchElementException;
+
+// A persistent association list from symbols to values: each cell is a
+// binding, so a lookup follows one pointer per binding and casts nothing
+// on the way. The innermost binding of a symbol shadows the others, and
+// traversals are loops, so deep environments cannot overflow the stack.
+//
+// It is the only typed list in util. Functions take one argument, so there
+// are no argument lists to keep, and the Machine's value stacks are arrays
+// it pushes and pops in place, which a persistent list of ints would only
+// make allocate.
+public final class Bindings<V> {
+  private final static Bindings<Object> EMPTY = new Bindings<>(null, null, null, 0);
+
+  public final Symbol symbol;
+  public final V value;
+  public final Bindings<V> rest;
+  public final int size;
+
+  private Bindings(Symbol symbol, V value, Bindings<V> rest, int size) {
+    this.symbol = symbol;
+    this.value = value;
+    this.rest = rest;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <V> Bindings<V> empty() {
+    return (Bindings<V>) EMPTY;
+  }
+
+  public Bindings<V> bind(Symbol symbol, V value) {
+    return new Bindings<>(symbol, value, this, size + 1);
+  }
+
+  public V lookup(Symbol symbol) {
+    for (Bindings<V> b = this; b.size > 0; b = b.rest)
+      if (b.symbol == symbol)
+        return b.value;
+    throw new NoSuchElementException(symbol.name);
+  }
+
+  // The number of bindings above the innermost binding of symbol, or -1
+  public int depth(Symbol symbol) {
+    int depth = 0;
+    for (Bindings<V> b = this; b.size > 0; b = b.rest, depth++)
+      if (b.symbol == symbol)
+        return depth;
+    return -1;
+  }
+
+  public V get(int depth) {
+    if (depth < 0 || depth >= size)
+      throw new NoSuchElementException();
+
+    Bindings<V> b = this;
+    while (depth-- > 0)
+      b = b.rest;
+    return b.value;
+  }
+}
@@ -0,0 +1,59 @@
+package util;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+// A Sink that collects lines and writes them to out only when capacity
+// characters have accumulated or on flush. It takes no locks, so a thread
+// that prints should have a BufferedSink of its own.
+public final class BufferedSink implements Sink {
+  private final Writer out;
+  private final StringBuilder buffer;
+  private final int capacity;
+
+  public BufferedSink(Writer out, int capacity) {
+    this.out = out;
+    this.buffer = new StringBuilder(capacity);
+    this.capacity = capacity;
+  }
+
+  public BufferedSink(Writer out) {
+    this(out, 8192);
+  }
+
+  // Straight to file descriptor 1, bypassing System.out
+  public static BufferedSink stdout() {
+    return new BufferedSink(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), Charset.defaultCharset()));
+  }
+
+  @Override
+  public void println(Object value) {
+    buffer.append(value).append('\n');
+    if (buffer.length() >= capacity)
+      drain();
+  }
+
+  @Override
+  public void flush() {
+    drain();
+    try {
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void drain() {
+    try {
+      out.append(buffer);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    buffer.setLength(0);
+  }
+}
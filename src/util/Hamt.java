@@ -0,0 +1,148 @@
+package util;
+
+// A persistent hash array mapped trie. Each level of the trie consumes five
+// bits of the key's hash, and put copies only the nodes on the path to the
+// key, so every version of the map stays valid and lookups and updates take
+// time logarithmic in the number of keys.
+public class Hamt {
+  public final static Hamt EMPTY = new Hamt(BitmapNode.EMPTY);
+
+  private final Node root;
+
+  private Hamt(Node root) {
+    this.root = root;
+  }
+
+  // The value bound to key, or notFound
+  public Object get(Object key, Object notFound) {
+    return root.get(key, key.hashCode(), 0, notFound);
+  }
+
+  public boolean containsKey(Object key) {
+    return root.get(key, key.hashCode(), 0, BitmapNode.EMPTY) != BitmapNode.EMPTY;
+  }
+
+  public Hamt put(Object key, Object value) {
+    Node newRoot = root.put(key, key.hashCode(), value, 0);
+    return newRoot == root ? this : new Hamt(newRoot);
+  }
+
+  static abstract class Node {
+    abstract Object get(Object key, int hash, int shift, Object notFound);
+
+    abstract Node put(Object key, int hash, Object value, int shift);
+  }
+
+  // Up to 32 entries, present where the bitmap has a bit set. An entry is a
+  // key and its value, or a null key and the sub-trie for that hash chunk.
+  static class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    final int bitmap;
+    final Object[] array;
+
+    BitmapNode(int bitmap, Object[] array) {
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    @Override
+    Object get(Object key, int hash, int shift, Object notFound) {
+      int bit = 1 << ((hash >>> shift) & 31);
+      if ((bitmap & bit) == 0)
+        return notFound;
+
+      int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+      Object k = array[i];
+      if (k == null)
+        return ((Node) array[i + 1]).get(key, hash, shift + 5, notFound);
+      else if (k == key || k.equals(key))
+        return array[i + 1];
+      else
+        return notFound;
+    }
+
+    @Override
+    Node put(Object key, int hash, Object value, int shift) {
+      int bit = 1 << ((hash >>> shift) & 31);
+      int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+
+      if ((bitmap & bit) == 0) {
+        Object[] newArray = new Object[array.length + 2];
+        System.arraycopy(array, 0, newArray, 0, i);
+        newArray[i] = key;
+        newArray[i + 1] = value;
+        System.arraycopy(array, i, newArray, i + 2, array.length - i);
+        return new BitmapNode(bitmap | bit, newArray);
+      }
+
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (k == null) {
+        Node sub = ((Node) v).put(key, hash, value, shift + 5);
+        return sub == v ? this : with(i, null, sub);
+      } else if (k == key || k.equals(key)) {
+        return v == value ? this : with(i, k, value);
+      } else {
+        return with(i, null, pair(k, v, key, hash, value, shift + 5));
+      }
+    }
+
+    Node with(int i, Object key, Object value) {
+      Object[] newArray = array.clone();
+      newArray[i] = key;
+      newArray[i + 1] = value;
+      return new BitmapNode(bitmap, newArray);
+    }
+
+    static Node pair(Object key1, Object value1, Object key2, int hash2, Object value2, int shift) {
+      int hash1 = key1.hashCode();
+      if (hash1 == hash2)
+        return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+      return EMPTY.put(key1, hash1, value1, shift).put(key2, hash2, value2, shift);
+    }
+  }
+
+  // Keys whose hashes are equal in all 32 bits
+  static class CollisionNode extends Node {
+    final int hash;
+    final Object[] array;
+
+    CollisionNode(int hash, Object[] array) {
+      this.hash = hash;
+      this.array = array;
+    }
+
+    @Override
+    Object get(Object key, int hash, int shift, Object notFound) {
+      for (int i = 0; i < array.length; i += 2)
+        if (array[i] == key || array[i].equals(key))
+          return array[i + 1];
+      return notFound;
+    }
+
+    @Override
+    Node put(Object key, int hash, Object value, int shift) {
+      if (hash != this.hash) {
+        BitmapNode wrapper = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[] { null, this });
+        return wrapper.put(key, hash, value, shift);
+      }
+
+      for (int i = 0; i < array.length; i += 2) {
+        if (array[i] == key || array[i].equals(key)) {
+          if (array[i + 1] == value)
+            return this;
+          Object[] newArray = array.clone();
+          newArray[i + 1] = value;
+          return new CollisionNode(hash, newArray);
+        }
+      }
+
+      Object[] newArray = new Object[array.length + 2];
+      System.arraycopy(array, 0, newArray, 0, array.length);
+      newArray[array.length] = key;
+      newArray[array.length + 1] = value;
+      return new CollisionNode(hash, newArray);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package util;
+
+// Where interpret writes a program's value. Engines never print on their
+// own: evaluate returns the value, and only interpret hands it to a Sink.
+public interface Sink {
+  // Through System.out, which locks and flushes on every line
+  public final static Sink SYSTEM_OUT = new Sink() {
+    @Override
+    public void println(Object value) {
+      System.out.println(value);
+    }
+
+    @Override
+    public void flush() {
+      System.out.flush();
+    }
+  };
+
+  void println(Object value);
+
+  void flush();
+}
@@ -0,0 +1,69 @@
+package util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A name, interned: there is one Symbol per distinct string, so symbols are
+// compared by reference.
+public final class Symbol {
+  // The table only holds its symbols weakly, so names that no program uses
+  // any more are collected, and their entries dropped on a later intern. A
+  // symbol that is still referenced cannot be collected, so it stays the
+  // only one for its name.
+  private final static ConcurrentHashMap<String, Entry> table = new ConcurrentHashMap<>();
+  private final static ReferenceQueue<Symbol> collected = new ReferenceQueue<>();
+
+  public final String name;
+  private final int hash;
+
+  private Symbol(String name) {
+    this.name = name;
+    this.hash = name.hashCode();
+  }
+
+  public static Symbol intern(String name) {
+    expunge();
+
+    while (true) {
+      Entry entry = table.get(name);
+      Symbol s = entry == null ? null : entry.get();
+      if (s != null)
+        return s;
+
+      // Absent, or collected and not expunged yet; another thread may get
+      // there first, and then its symbol is the one
+      Symbol fresh = new Symbol(name);
+      Entry freshEntry = new Entry(fresh, collected);
+      if (entry == null ? table.putIfAbsent(name, freshEntry) == null : table.replace(name, entry, freshEntry))
+        return fresh;
+    }
+  }
+
+  // Removes the entries of collected symbols, unless already replaced
+  private static void expunge() {
+    for (Reference<? extends Symbol> r = collected.poll(); r != null; r = collected.poll())
+      table.remove(((Entry) r).name, r);
+  }
+
+  // Keeps the name, which is needed once the symbol is gone
+  private static final class Entry extends WeakReference<Symbol> {
+    final String name;
+
+    Entry(Symbol s, ReferenceQueue<Symbol> queue) {
+      super(s, queue);
+      this.name = s.name;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}